@@ -0,0 +1,145 @@
+package com.sony.sel.tvapp.util;
+
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import com.sony.sel.tvapp.util.DlnaObjects.DlnaObject;
+import com.sony.sel.tvapp.util.DlnaObjects.VideoProgram;
+
+import org.fourthline.cling.support.contentdirectory.DIDLParser;
+import org.fourthline.cling.support.model.DIDLContent;
+import org.fourthline.cling.support.model.container.Container;
+import org.fourthline.cling.support.model.item.Item;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Scanner;
+
+/**
+ * Tests & benchmarks for DIDL parsing in the Cling DLNA helper, using a recorded EPG response.
+ */
+public class ClingDlnaHelperTest extends InstrumentationTestCase {
+
+  private static final String TAG = ClingDlnaHelperTest.class.getSimpleName();
+
+  private static final String EPG_FIXTURE = "epg-didl.xml";
+  private static final String CHANNELS_FIXTURE = "channels-didl.xml";
+
+  /**
+   * DIDL properties are mapped to the matching program fields.
+   */
+  public void test_parseDidlItem_videoProgram() throws Exception {
+    List<Item> items = parseFixture(EPG_FIXTURE).getItems();
+    assertEquals("Wrong fixture item count.", 3, items.size());
+
+    VideoProgram program = (VideoProgram) ClingDlnaHelper.parseDidlItem(items.get(1));
+    assertEquals("Wrong title.", "Cooking at Home", program.getTitle());
+    assertEquals("Wrong channel.", "5", program.getChannelId());
+    assertEquals("Wrong program ID.", "EP000002", program.getProgramId());
+    assertEquals("Wrong genre.", "Cooking", program.getGenre());
+    assertEquals("Wrong rating.", "TV-G", program.getRating());
+    assertEquals("Wrong icon.", "http://192.168.1.10:8080/icons/5.png", program.getIcon());
+    assertEquals("Wrong episode type.", "Repeat", program.getEpisodeType());
+    assertEquals("Wrong duration.", 30 * 60 * 1000,
+        program.getScheduledEndTime().getTime() - program.getScheduledStartTime().getTime());
+  }
+
+  /**
+   * Measure objects/sec converting the recorded programs, as for a large EPG crawl.
+   */
+  public void test_parseDidlItem_benchmark() throws Exception {
+    List<Item> items = parseFixture(EPG_FIXTURE).getItems();
+    final int iterations = 20000 / items.size();
+
+    // warm up
+    for (Item item : items) {
+      ClingDlnaHelper.parseDidlItem(item);
+    }
+    long time = System.nanoTime();
+    int count = 0;
+    for (int i = 0; i < iterations; i++) {
+      for (Item item : items) {
+        DlnaObject object = ClingDlnaHelper.parseDidlItem(item);
+        assertNotNull("Item was not converted.", object);
+        count++;
+      }
+    }
+    time = System.nanoTime() - time;
+    Log.d(TAG, String.format("Converted %d DIDL items in %dms, %d objects/sec.",
+        count, time / 1000000, count * 1000000000L / Math.max(time, 1)));
+  }
+
+  /**
+   * The streaming parser produces the same objects as the Cling parser on recorded responses.
+   */
+  public void test_streamingParser_matchesCling() throws Exception {
+    for (String fixture : Arrays.asList(EPG_FIXTURE, CHANNELS_FIXTURE)) {
+      String xml = loadFixture(fixture);
+      List<DlnaObject> expected = parseWithCling(xml);
+      List<DlnaObject> objects = new ArrayList<>();
+      int count = DidlLiteParser.parse(xml, objects);
+      assertEquals("Wrong object count in " + fixture + ".", expected.size(), count);
+      assertEquals("Wrong converted count in " + fixture + ".", expected.size(), objects.size());
+      for (int i = 0; i < expected.size(); i++) {
+        assertEquals("Wrong class in " + fixture + ".", expected.get(i).getClass(), objects.get(i).getClass());
+        assertTrue("Object " + expected.get(i).getId() + " did not match in " + fixture + ".",
+            Arrays.equals(DlnaObjectCodec.encode(expected.get(i)), DlnaObjectCodec.encode(objects.get(i))));
+      }
+    }
+  }
+
+  /**
+   * Compare objects/sec of the Cling parser & conversion against the streaming parser.
+   */
+  public void test_streamingParser_benchmark() throws Exception {
+    String xml = loadFixture(EPG_FIXTURE);
+    final int iterations = 2000;
+
+    // warm up
+    parseWithCling(xml);
+    DidlLiteParser.parse(xml, new ArrayList<DlnaObject>());
+
+    long time = System.nanoTime();
+    int count = 0;
+    for (int i = 0; i < iterations; i++) {
+      count += parseWithCling(xml).size();
+    }
+    long clingTime = System.nanoTime() - time;
+
+    time = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      DidlLiteParser.parse(xml, new ArrayList<DlnaObject>());
+    }
+    long streamingTime = System.nanoTime() - time;
+
+    Log.d(TAG, String.format("Cling: %d objects/sec. Streaming: %d objects/sec.",
+        count * 1000000000L / Math.max(clingTime, 1), count * 1000000000L / Math.max(streamingTime, 1)));
+  }
+
+  private static List<DlnaObject> parseWithCling(String xml) throws Exception {
+    DIDLContent didl = new DIDLParser().parse(xml);
+    List<DlnaObject> objects = new ArrayList<>();
+    for (Container container : didl.getContainers()) {
+      objects.add(ClingDlnaHelper.parseDidlItem(container));
+    }
+    for (Item item : didl.getItems()) {
+      objects.add(ClingDlnaHelper.parseDidlItem(item));
+    }
+    return objects;
+  }
+
+  private DIDLContent parseFixture(String name) throws Exception {
+    return new DIDLParser().parse(loadFixture(name));
+  }
+
+  private String loadFixture(String name) throws Exception {
+    InputStream stream = getInstrumentation().getContext().getAssets().open(name);
+    try {
+      return new Scanner(stream, "UTF-8").useDelimiter("\\A").next();
+    } finally {
+      stream.close();
+    }
+  }
+}
@@ -0,0 +1,199 @@
+package com.sony.sel.tvapp.util;
+
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import com.sony.sel.tvapp.util.DlnaObjects.DlnaObject;
+import com.sony.sel.tvapp.util.DlnaObjects.VideoProgram;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Tests for the in-memory DLNA cache.
+ */
+public class DlnaMemoryCacheTest extends InstrumentationTestCase {
+
+  private static final String TAG = DlnaMemoryCacheTest.class.getSimpleName();
+
+  private static final String UDN = "uuid:test-server";
+
+  /**
+   * The cache stays within its weight budget by evicting least recently used parents, and counts hits, misses & evictions.
+   */
+  public void test_boundedWeight_evictsLeastRecentlyUsed() {
+    Map<String, List<DlnaObject>> parents = DlnaSqlCacheTest.buildEpg(System.currentTimeMillis(), 200, 48);
+    long parentWeight = DlnaMemoryCache.getWeight(parents.values().iterator().next());
+    // room for about a quarter of the parents
+    DlnaMemoryCache cache = new DlnaMemoryCache(parentWeight * 50);
+    cache.addAll(UDN, parents);
+
+    DlnaMemoryCache.Stats stats = cache.getStats();
+    Log.d(TAG, "After load: " + stats + ".");
+    assertTrue("Cache exceeded its weight budget.", stats.getWeight() <= stats.getMaxWeight());
+    assertTrue("Nothing was evicted.", stats.getEvictionCount() > 0);
+    assertEquals("Parent count did not match evictions.", 200 - stats.getEvictionCount(), stats.getParentCount());
+
+    // the last parent added is the most recently used in its segment and is kept
+    assertNotNull("Most recent parent was evicted.", cache.getChildren(UDN, "0/EPG/199/test"));
+    int hits = 0;
+    for (String parentId : parents.keySet()) {
+      if (cache.getChildren(UDN, parentId) != null) {
+        hits++;
+      }
+    }
+    stats = cache.getStats();
+    assertEquals("Wrong hit count.", hits + 1, stats.getHitCount());
+    assertEquals("Wrong miss count.", 200 - hits, stats.getMissCount());
+
+    cache.reset();
+    assertEquals("Reset did not clear the cache.", 0, cache.getStats().getWeight());
+  }
+
+  /**
+   * Indexed EPG queries return the same programs, in the same order, as a linear scan sorted by channel & start time.
+   */
+  public void test_searchEpg_matchesLinearScan() {
+    long now = DlnaSqlCache.getEpgSlot(System.currentTimeMillis()) * DlnaSqlCache.EPG_SLOT_MS;
+    long day = 24 * DlnaSqlCache.EPG_SLOT_MS;
+    DlnaMemoryCache cache = new DlnaMemoryCache();
+    // two days per channel in separate parents, added out of order
+    Map<String, List<DlnaObject>> tomorrow = DlnaSqlCacheTest.rekey(DlnaSqlCacheTest.buildEpg(now + day, 12, 48), "1");
+    Map<String, List<DlnaObject>> today = DlnaSqlCacheTest.rekey(DlnaSqlCacheTest.buildEpg(now, 12, 48), "0");
+    cache.addAll(UDN, tomorrow);
+    cache.addAll(UDN, today);
+
+    List<DlnaObject> all = new ArrayList<>();
+    for (int channel = 0; channel < 12; channel++) {
+      all.addAll(today.get("0/EPG/" + channel + "/test/0"));
+      all.addAll(tomorrow.get("0/EPG/" + channel + "/test/1"));
+    }
+    List<String> channels = Arrays.asList("3", "1", "10");
+    long[][] intervals = {
+        {now, now + 3 * DlnaSqlCache.EPG_SLOT_MS},
+        {now + 15 * 60 * 1000, now + 15 * 60 * 1000},
+        {now + day - DlnaSqlCache.EPG_SLOT_MS, now + day + DlnaSqlCache.EPG_SLOT_MS},
+        {now - day, now},
+        {now + 3 * day, now + 4 * day},
+    };
+    for (long[] interval : intervals) {
+      Date start = new Date(interval[0]);
+      Date end = new Date(interval[1]);
+      for (List<String> channelIds : Arrays.asList(null, channels)) {
+        List<String> expected = scan(all, channelIds, interval[0], interval[1]);
+        assertEquals("Results did not match a linear scan.", expected, ids(cache.searchEpg(UDN, channelIds, start, end)));
+      }
+      assertEquals("Count did not match a linear scan.", scan(all, channels, interval[0], interval[1]).size(),
+          cache.countEpgItems(UDN, channels, start, end));
+    }
+
+    DlnaObject item = today.get("0/EPG/5/test/0").get(7);
+    assertSame("Item not found by ID.", item, cache.getItemById(UDN, item.getId()));
+    assertNull("Unknown ID found.", cache.getItemById(UDN, "0/EPG/99/test/0"));
+    cache.reset();
+    assertNull("Reset did not clear the ID index.", cache.getItemById(UDN, item.getId()));
+    assertTrue("Reset did not clear the EPG index.", cache.searchEpg(UDN, null, new Date(now), new Date(now + day)).isEmpty());
+  }
+
+  /**
+   * Searches only match titles under the search root, ignoring case, and are not counted as cache hits.
+   */
+  public void test_search_underParent() {
+    DlnaMemoryCache cache = new DlnaMemoryCache();
+    cache.addAll(UDN, DlnaSqlCacheTest.buildEpg(System.currentTimeMillis(), 12, 10));
+
+    List<DlnaObject> results = cache.search(UDN, "0/EPG/1", "PROGRAM 1");
+    // channels 1, 10 & 11 are under 0/EPG/1
+    assertEquals("Wrong result count.", 30, results.size());
+    for (DlnaObject result : results) {
+      assertTrue("Result outside the search root.", result.getId().startsWith("0/EPG/1"));
+    }
+    assertEquals("Wrong result count.", 1, cache.search(UDN, "0/EPG/1/", "program 1-9").size());
+    assertTrue("Search matched another server.", cache.search("uuid:other", "0/EPG", "Program").isEmpty());
+    assertEquals("Search counted as a hit.", 0, cache.getStats().getHitCount());
+  }
+
+  /**
+   * Searches ignore case the same way whatever the default locale, e.g. "I" still matches "i" in Turkish.
+   */
+  public void test_search_localeIndependent() {
+    Locale defaultLocale = Locale.getDefault();
+    Locale.setDefault(new Locale("tr", "TR"));
+    try {
+      DlnaMemoryCache cache = new DlnaMemoryCache();
+      List<DlnaObject> children = DlnaSqlCacheTest.buildEpg(System.currentTimeMillis(), 1, 2).get("0/EPG/0/test");
+      children.get(0).setTitle("INFO Channel");
+      cache.add(UDN, "0/EPG/0/test", children);
+      assertEquals("Lower case search text did not match.", 1, cache.search(UDN, "0/EPG", "info").size());
+      assertEquals("Upper case search text did not match.", 1, cache.search(UDN, "0/EPG", "INFO").size());
+    } finally {
+      Locale.setDefault(defaultLocale);
+    }
+  }
+
+  /**
+   * An ID cached under two parents is still found by ID after the parent that first cached it is replaced or evicted.
+   */
+  public void test_getItemById_sharedId() {
+    long now = System.currentTimeMillis();
+    List<DlnaObject> first = DlnaSqlCacheTest.buildEpg(now, 1, 4).get("0/EPG/0/test");
+    List<DlnaObject> second = DlnaSqlCacheTest.buildEpg(now, 1, 4).get("0/EPG/0/test");
+    DlnaObject item = second.get(2);
+    assertEquals("Parents do not share an ID.", first.get(2).getId(), item.getId());
+
+    DlnaMemoryCache cache = new DlnaMemoryCache();
+    cache.add(UDN, "0/EPG/0/test/a", first);
+    cache.add(UDN, "0/EPG/0/test/b", second);
+    cache.add(UDN, "0/EPG/0/test/a", new ArrayList<DlnaObject>());
+    assertSame("Shared ID removed when its first parent was replaced.", item, cache.getItemById(UDN, item.getId()));
+
+    // with no weight budget each segment keeps only its newest parent, so find a key in the first parent's segment
+    String parentId = null;
+    for (int i = 0; parentId == null; i++) {
+      cache = new DlnaMemoryCache(0);
+      cache.add(UDN, "0/EPG/0/test/a", first);
+      cache.add(UDN, "0/EPG/0/test/b" + i, second);
+      if (cache.getChildren(UDN, "0/EPG/0/test/a") == null) {
+        parentId = "0/EPG/0/test/b" + i;
+      }
+    }
+    assertSame("Shared ID removed when its first parent was evicted.", item, cache.getItemById(UDN, item.getId()));
+    assertNotNull("Newest parent was evicted.", cache.getChildren(UDN, parentId));
+  }
+
+  /**
+   * Return IDs of programs overlapping an interval by scanning every program, sorted by channel & start time.
+   */
+  private static List<String> scan(List<DlnaObject> all, List<String> channels, long start, long end) {
+    List<VideoProgram> matches = new ArrayList<>();
+    for (DlnaObject object : all) {
+      VideoProgram program = (VideoProgram) object;
+      if ((channels == null || channels.contains(program.getChannelId()))
+          && program.getScheduledStartTime().getTime() <= end && program.getScheduledEndTime().getTime() > start) {
+        matches.add(program);
+      }
+    }
+    // programs are already in start order within each channel
+    Collections.sort(matches, new Comparator<VideoProgram>() {
+      @Override
+      public int compare(VideoProgram lhs, VideoProgram rhs) {
+        return lhs.getChannelId().compareTo(rhs.getChannelId());
+      }
+    });
+    return ids(matches);
+  }
+
+  private static List<String> ids(List<VideoProgram> programs) {
+    List<String> ids = new ArrayList<>();
+    for (VideoProgram program : programs) {
+      ids.add(program.getId());
+    }
+    return ids;
+  }
+}
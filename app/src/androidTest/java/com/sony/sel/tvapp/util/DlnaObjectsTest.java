@@ -0,0 +1,276 @@
+package com.sony.sel.tvapp.util;
+
+import android.database.MatrixCursor;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import com.sony.sel.tvapp.util.DlnaObjects.CursorBinder;
+import com.sony.sel.tvapp.util.DlnaObjects.DlnaObject;
+import com.sony.sel.tvapp.util.DlnaObjects.VideoProgram;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Tests & benchmarks for loading DLNA objects from cursors and parsing their dates.
+ */
+public class DlnaObjectsTest extends InstrumentationTestCase {
+
+  private static final String TAG = DlnaObjectsTest.class.getSimpleName();
+
+  private static final String VIDEO_PROGRAM_CLASS = "object.item.epgItem.videoProgram";
+
+  /**
+   * A binder loads the same fields as loadFromCursor.
+   */
+  public void test_cursorBinder_matchesLoadFromCursor() {
+    MatrixCursor cursor = buildCursor(10);
+    CursorBinder binder = new CursorBinder(cursor);
+    while (cursor.moveToNext()) {
+      VideoProgram expected = new VideoProgram();
+      expected.loadFromCursor(cursor);
+      VideoProgram program = new VideoProgram();
+      binder.load(program);
+      int row = cursor.getPosition();
+      assertEquals("Wrong ID.", "0/EPG/1/" + row, program.getId());
+      assertEquals("Wrong class.", VIDEO_PROGRAM_CLASS, program.getUpnpClass());
+      assertEquals("Wrong title.", "dc:title-" + row, program.getTitle());
+      assertEquals("Wrong channel.", "upnp:channelID-" + row, program.getChannelId());
+      assertEquals("Objects did not match.", expected.toString(), program.toString());
+    }
+    cursor.close();
+  }
+
+  /**
+   * Trimmed projections keep the requested columns the class reads, plus the ID & class columns,
+   * and objects can be loaded from them.
+   */
+  public void test_getColumnNames_trimmed() {
+    String[] projection = DlnaObject.getColumnNames(VideoProgram.class, "dc:title", "upnp:channelID", "not:aColumn");
+    assertEquals("Wrong projection.", new HashSet<>(Arrays.asList("upnp:channelID", "dc:title", "upnp:class", "@id")),
+        new HashSet<>(Arrays.asList(projection)));
+    assertNotSame("Projection is shared.", projection, DlnaObject.getColumnNames(VideoProgram.class, "dc:title", "upnp:channelID", "not:aColumn"));
+
+    MatrixCursor cursor = new MatrixCursor(projection);
+    Object[] values = new Object[projection.length];
+    for (int i = 0; i < projection.length; i++) {
+      values[i] = projection[i].equals("upnp:class") ? VIDEO_PROGRAM_CLASS : projection[i] + "-0";
+    }
+    cursor.addRow(values);
+    cursor.moveToFirst();
+    VideoProgram program = new VideoProgram();
+    new CursorBinder(cursor).load(program);
+    cursor.close();
+    assertEquals("Wrong title.", "dc:title-0", program.getTitle());
+    assertEquals("Wrong channel.", "upnp:channelID-0", program.getChannelId());
+    assertNull("Unrequested column was loaded.", program.getRating());
+  }
+
+  /**
+   * Measure rows/sec loading programs from a 10k row cursor, one row at a time and with a binder.
+   */
+  public void test_cursorBinder_benchmark() {
+    final int rows = 10000;
+    MatrixCursor cursor = buildCursor(rows);
+
+    // warm up
+    cursor.moveToFirst();
+    new VideoProgram().loadFromCursor(cursor);
+
+    cursor.moveToPosition(-1);
+    long time = System.nanoTime();
+    while (cursor.moveToNext()) {
+      new VideoProgram().loadFromCursor(cursor);
+    }
+    long rowTime = System.nanoTime() - time;
+
+    cursor.moveToPosition(-1);
+    time = System.nanoTime();
+    CursorBinder binder = new CursorBinder(cursor);
+    while (cursor.moveToNext()) {
+      binder.load(new VideoProgram());
+    }
+    long binderTime = System.nanoTime() - time;
+    cursor.close();
+
+    Log.d(TAG, String.format("loadFromCursor: %d rows/sec. CursorBinder: %d rows/sec.",
+        rows * 1000000000L / Math.max(rowTime, 1), rows * 1000000000L / Math.max(binderTime, 1)));
+  }
+
+  /**
+   * The date parser gives the same times as the original SimpleDateFormat, including lenient fallbacks,
+   * and only parses the exact layout of its pattern by hand.
+   */
+  public void test_dateParser_matchesSimpleDateFormat() throws Exception {
+    DateFormat format = new SimpleDateFormat(DlnaDateParser.PATTERN);
+    String[] dates = {
+        "2016-04-21T13:00:00Z+0000",
+        "2016-04-21T23:30:00Z-0700",
+        "2016-12-31T20:15:59Z+0530",
+        "2016-02-29T00:00:00Z+0000",
+        "1999-01-01T00:00:00Z+1400",
+        "2016-02-30T10:00:00Z+0000",
+        "2016-4-21T13:00:00Z+0000",
+    };
+    for (String date : dates) {
+      assertEquals("Wrong time for " + date + ".", format.parse(date).getTime(), DlnaDateParser.parse(date));
+    }
+    // other ISO 8601 forms are left to the fallback, which may reject them
+    String[] others = {
+        "2016-04-21T13:00:00Z+01:30",
+        "2016-04-21T13:00:00.500Z+0000",
+        "2016-04-21T13:00:00Z",
+        "2016-04-21T13:00:00",
+        "2016-04-21T13:00:00+0000",
+    };
+    for (String date : others) {
+      assertEquals("Parsed by hand: " + date + ".", DlnaDateParser.INVALID, DlnaDateParser.parseFixed(date));
+      long expected;
+      try {
+        expected = format.parse(date).getTime();
+      } catch (ParseException e) {
+        expected = DlnaDateParser.INVALID;
+      }
+      assertEquals("Wrong time for " + date + ".", expected, DlnaDateParser.parse(date));
+    }
+    assertEquals("Null was parsed.", DlnaDateParser.INVALID, DlnaDateParser.parse(null));
+    assertEquals("Garbage was parsed.", DlnaDateParser.INVALID, DlnaDateParser.parse("not a date"));
+
+    VideoProgram program = new VideoProgram();
+    assertNull("Missing time was parsed.", program.getScheduledStartTime());
+    program.setScheduledStartTime(dates[0]);
+    assertEquals("Wrong start time.", format.parse(dates[0]), program.getScheduledStartTime());
+    program.setScheduledStartTime(dates[1]);
+    assertEquals("Parsed time was not reset.", format.parse(dates[1]).getTime(), program.getScheduledStartMillis());
+  }
+
+  /**
+   * Programs shared between threads return the right schedule times.
+   */
+  public void test_scheduledTimes_concurrent() throws Exception {
+    final int threads = 8;
+    final List<VideoProgram> programs = buildPrograms(2000);
+    final List<Long> expected = new ArrayList<>();
+    DateFormat format = new SimpleDateFormat(DlnaDateParser.PATTERN);
+    for (int i = 0; i < programs.size(); i++) {
+      expected.add(format.parse(getStartText(i)).getTime());
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Integer>> futures = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        futures.add(executor.submit(new Callable<Integer>() {
+          @Override
+          public Integer call() throws Exception {
+            int errors = 0;
+            for (int i = 0; i < programs.size(); i++) {
+              VideoProgram program = programs.get(i);
+              if (program.getScheduledStartTime().getTime() != expected.get(i)
+                  || program.getScheduledEndMillis() - program.getScheduledStartMillis() != 30 * 60 * 1000) {
+                errors++;
+              }
+            }
+            return errors;
+          }
+        }));
+      }
+      for (Future<Integer> future : futures) {
+        assertEquals("Wrong times read.", 0, (int) future.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Measure dates/sec for the shared SimpleDateFormat, the date parser, and repeated reads of parsed times.
+   */
+  public void test_scheduledTimes_benchmark() throws ParseException {
+    final int count = 10000;
+    List<VideoProgram> programs = buildPrograms(count);
+    DateFormat format = new SimpleDateFormat(DlnaDateParser.PATTERN);
+
+    List<String> dates = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      dates.add(getStartText(i));
+    }
+
+    long time = System.nanoTime();
+    for (String date : dates) {
+      synchronized (format) {
+        format.parse(date);
+      }
+    }
+    long formatTime = System.nanoTime() - time;
+
+    time = System.nanoTime();
+    for (String date : dates) {
+      DlnaDateParser.parse(date);
+    }
+    long parserTime = System.nanoTime() - time;
+
+    for (VideoProgram program : programs) {
+      program.getScheduledStartMillis();
+    }
+    time = System.nanoTime();
+    for (VideoProgram program : programs) {
+      program.getScheduledStartMillis();
+    }
+    long cachedTime = System.nanoTime() - time;
+
+    Log.d(TAG, String.format("SimpleDateFormat: %d/sec. DlnaDateParser: %d/sec. Parsed: %d/sec.",
+        count * 1000000000L / Math.max(formatTime, 1), count * 1000000000L / Math.max(parserTime, 1),
+        count * 1000000000L / Math.max(cachedTime, 1)));
+  }
+
+  /**
+   * Build half hour programs, starting on the hour in a range of time zones.
+   */
+  private static List<VideoProgram> buildPrograms(int count) {
+    List<VideoProgram> programs = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      VideoProgram program = new VideoProgram();
+      program.setScheduledStartTime(getStartText(i));
+      program.setScheduledEndTime(getStartText(i).replace(":00:00Z", ":30:00Z"));
+      programs.add(program);
+    }
+    return programs;
+  }
+
+  private static String getStartText(int i) {
+    return String.format(Locale.US, "2016-%02d-%02dT%02d:00:00Z%s%02d00", i % 12 + 1, i % 28 + 1, i % 24, i % 2 == 0 ? "+" : "-", i % 12);
+  }
+
+  /**
+   * Build a cursor of programs with every column a program reads.
+   * Each value is the column name and row number, except for the ID & class.
+   */
+  private static MatrixCursor buildCursor(int rows) {
+    String[] columns = DlnaObject.getColumnNames(VideoProgram.class);
+    MatrixCursor cursor = new MatrixCursor(columns, rows);
+    for (int row = 0; row < rows; row++) {
+      Object[] values = new Object[columns.length];
+      for (int i = 0; i < columns.length; i++) {
+        if (columns[i].equals("@id")) {
+          values[i] = "0/EPG/1/" + row;
+        } else if (columns[i].equals("upnp:class")) {
+          values[i] = VIDEO_PROGRAM_CLASS;
+        } else {
+          values[i] = columns[i] + "-" + row;
+        }
+      }
+      cursor.addRow(values);
+    }
+    return cursor;
+  }
+}
@@ -0,0 +1,636 @@
+package com.sony.sel.tvapp.util;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.annotation.NonNull;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.sony.sel.tvapp.util.DlnaObjects.DlnaObject;
+import com.sony.sel.tvapp.util.DlnaObjects.VideoBroadcast;
+import com.sony.sel.tvapp.util.DlnaObjects.VideoProgram;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests & benchmarks for the SQLite DLNA cache, run against a scratch database.
+ */
+public class DlnaSqlCacheTest extends InstrumentationTestCase {
+
+  private static final String TAG = DlnaSqlCacheTest.class.getSimpleName();
+
+  private static final String TEST_DATABASE = "dlnacache-test.db";
+  private static final String UDN = "uuid:test-server";
+
+  private static final int CHANNEL_COUNT = 250;
+  private static final int PROGRAMS_PER_CHANNEL = 400;
+  private static final long PROGRAM_LENGTH_MS = 30 * 60 * 1000;
+  private static final long ONE_DAY_MS = 24 * 60 * 60 * 1000;
+
+  private Context context;
+  private DlnaSqlCache cache;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    context = getInstrumentation().getTargetContext();
+    context.deleteDatabase(TEST_DATABASE);
+    cache = new DlnaSqlCache(context, TEST_DATABASE);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    cache.close();
+    context.deleteDatabase(TEST_DATABASE);
+    super.tearDown();
+  }
+
+  /**
+   * Compare rows/sec of per-row ContentValues inserts against the compiled statements of the bulk path on a
+   * synthetic 100k program load. Both paths write the same rows to empty tables in one transaction.
+   */
+  public void test_bulkInsert_benchmark() {
+    Map<String, List<DlnaObject>> parents = buildEpg(System.currentTimeMillis(), CHANNEL_COUNT, PROGRAMS_PER_CHANNEL);
+    int total = CHANNEL_COUNT * PROGRAMS_PER_CHANNEL;
+
+    // before: one ContentValues & insert() call per row
+    long time = System.currentTimeMillis();
+    cache.db.beginTransaction();
+    try {
+      long now = System.currentTimeMillis();
+      for (Map.Entry<String, List<DlnaObject>> entry : parents.entrySet()) {
+        String[] args = new String[]{UDN, entry.getKey()};
+        cache.db.delete("EpgSlots", "UDN = ? AND ParentID = ?", args);
+        cache.db.delete("DLNAObjects", "UDN = ? AND ParentID = ?", args);
+        int childIndex = 0;
+        long bytes = 0;
+        long endTime = Long.MIN_VALUE;
+        for (DlnaObject child : entry.getValue()) {
+          VideoProgram program = (VideoProgram) child;
+          byte[] data = DlnaObjectCodec.encode(program);
+          bytes += data.length;
+          ContentValues values = new ContentValues();
+          values.put("UDN", UDN);
+          values.put("ParentID", entry.getKey());
+          values.put("ID", program.getId());
+          values.put("Title", program.getTitle());
+          values.put("UPNPClass", program.getUpnpClass());
+          values.put("Data", data);
+          values.put("ChildIndex", childIndex++);
+          values.put("ScheduledStartTime", program.getScheduledStartMillis());
+          values.put("ScheduledEndTime", program.getScheduledEndMillis());
+          values.put("ChannelID", program.getChannelId());
+          values.put("Icon", program.getIcon());
+          values.put("ProgramTitle", program.getProgramTitle());
+          values.put("Rating", program.getRating());
+          cache.db.insertWithOnConflict("DLNAObjects", null, values, SQLiteDatabase.CONFLICT_IGNORE);
+          endTime = Math.max(endTime, program.getScheduledEndMillis());
+          long firstSlot = DlnaSqlCache.getEpgSlot(program.getScheduledStartMillis());
+          long lastSlot = Math.max(firstSlot, DlnaSqlCache.getEpgSlot(program.getScheduledEndMillis() - 1));
+          for (long slot = firstSlot; slot <= lastSlot; slot++) {
+            ContentValues slotValues = new ContentValues();
+            slotValues.put("UDN", UDN);
+            slotValues.put("ChannelID", program.getChannelId());
+            slotValues.put("Slot", slot);
+            slotValues.put("First", slot == firstSlot ? 1 : 0);
+            slotValues.put("ParentID", entry.getKey());
+            slotValues.put("ID", program.getId());
+            cache.db.insertWithOnConflict("EpgSlots", null, slotValues, SQLiteDatabase.CONFLICT_IGNORE);
+          }
+        }
+        ContentValues parentValues = new ContentValues();
+        parentValues.put("UDN", UDN);
+        parentValues.put("ParentID", entry.getKey());
+        parentValues.put("Rows", entry.getValue().size());
+        parentValues.put("Bytes", bytes);
+        parentValues.put("EndTime", endTime);
+        parentValues.put("LastAccess", now);
+        cache.db.insertWithOnConflict("CacheParents", null, parentValues, SQLiteDatabase.CONFLICT_REPLACE);
+      }
+      cache.db.setTransactionSuccessful();
+    } finally {
+      cache.db.endTransaction();
+    }
+    long perRowTime = Math.max(1, System.currentTimeMillis() - time);
+    assertEquals("Unexpected number of rows written.", total, DatabaseUtils.queryNumEntries(cache.db, "DLNAObjects"));
+
+    // start the bulk path from the same empty tables
+    cache.db.delete("EpgSlots", null, null);
+    cache.db.delete("DLNAObjects", null, null);
+    cache.db.delete("CacheParents", null, null);
+
+    // after: one compiled statement per table for the whole load
+    time = System.currentTimeMillis();
+    int rows = cache.save(UDN, parents);
+    long bulkTime = Math.max(1, System.currentTimeMillis() - time);
+
+    assertEquals("Unexpected number of rows written.", total, rows);
+    Log.d(TAG, String.format("Per-row insert: %d rows in %d ms (%d rows/sec).", total, perRowTime, total * 1000L / perRowTime));
+    Log.d(TAG, String.format("Bulk insert: %d rows in %d ms (%d rows/sec).", total, bulkTime, total * 1000L / bulkTime));
+  }
+
+  /**
+   * Measure EPG grid query latency at 1, 7 and 14 days of cached EPG, comparing the slot index
+   * against a range scan of the composite (ChannelID, ScheduledStartTime, ScheduledEndTime) index.
+   */
+  public void test_searchEpg_latency() {
+    final int channelCount = 200;
+    final int programsPerDay = (int) (ONE_DAY_MS / PROGRAM_LENGTH_MS);
+    List<String> channelIds = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      channelIds.add(String.valueOf(i));
+    }
+    StringBuilder channelsString = new StringBuilder();
+    for (String channelId : channelIds) {
+      channelsString.append(channelsString.length() > 0 ? ", '" : "'").append(channelId).append("'");
+    }
+    for (int days : new int[]{1, 7, 14}) {
+      cache.reset();
+      // cached EPG ends one day from now, so the query window is at the newest end of the data
+      long now = System.currentTimeMillis();
+      long epgStart = now - (days - 1) * ONE_DAY_MS;
+      cache.save(UDN, buildEpg(epgStart, channelCount, days * programsPerDay));
+      Date start = new Date(now);
+      Date end = new Date(now + 3 * 60 * 60 * 1000);
+
+      long time = System.currentTimeMillis();
+      List<VideoProgram> programs = cache.searchEpg(UDN, channelIds, start, end);
+      long slotTime = System.currentTimeMillis() - time;
+
+      time = System.currentTimeMillis();
+      Cursor cursor = cache.db.rawQuery("SELECT UPNPClass, Data FROM DLNAObjects WHERE UDN = '" + UDN + "'"
+          + " AND ChannelID IN (" + channelsString + ")"
+          + " AND ScheduledStartTime <= " + end.getTime()
+          + " AND ScheduledEndTime > " + start.getTime()
+          + " ORDER BY ChannelID, ScheduledStartTime", null);
+      List<VideoProgram> rangePrograms = cache.buildResults(cursor);
+      cursor.close();
+      long rangeTime = System.currentTimeMillis() - time;
+
+      assertEquals("Slot index returned different results than a range scan.", rangePrograms.size(), programs.size());
+      Log.d(TAG, String.format("%d days cached: %d programs. Slot index query = %d ms, range scan query = %d ms.", days, programs.size(), slotTime, rangeTime));
+    }
+  }
+
+  /**
+   * Programs that span several slots are returned once, and programs ending exactly at the start time are excluded.
+   */
+  public void test_searchEpg_overlap() {
+    long start = (System.currentTimeMillis() / DlnaSqlCache.EPG_SLOT_MS) * DlnaSqlCache.EPG_SLOT_MS;
+    cache.save(UDN, buildEpg(start, 1, 48));
+    List<String> channelIds = new ArrayList<>();
+    channelIds.add("0");
+    // 30 minute programs, query from 1:00 to 3:15 overlaps programs 2 through 6
+    List<VideoProgram> programs = cache.searchEpg(UDN, channelIds, new Date(start + 2 * PROGRAM_LENGTH_MS), new Date(start + 6 * PROGRAM_LENGTH_MS + 15 * 60 * 1000));
+    assertEquals("Wrong number of overlapping programs.", 5, programs.size());
+    assertEquals("Wrong first program.", "0/EPG/0/test/2", programs.get(0).getId());
+    assertEquals("Count did not match search.", 5, cache.countEpgItems(UDN, channelIds, new Date(start + 2 * PROGRAM_LENGTH_MS), new Date(start + 6 * PROGRAM_LENGTH_MS + 15 * 60 * 1000)));
+  }
+
+  /**
+   * Program views carry the same promoted fields as the full programs and load the same program.
+   */
+  public void test_searchEpgViews_matchesPrograms() {
+    long start = (System.currentTimeMillis() / DlnaSqlCache.EPG_SLOT_MS) * DlnaSqlCache.EPG_SLOT_MS;
+    cache.save(UDN, buildEpg(start, 4, 48));
+    Date from = new Date(start);
+    Date to = new Date(start + ONE_DAY_MS);
+    List<VideoProgram> programs = cache.searchEpg(UDN, null, from, to);
+    List<VideoProgramView> views = cache.searchEpgViews(UDN, null, from, to);
+    assertEquals("View count did not match programs.", programs.size(), views.size());
+    for (int i = 0; i < programs.size(); i++) {
+      VideoProgram program = programs.get(i);
+      VideoProgramView view = views.get(i);
+      assertEquals("Wrong view ID.", program.getId(), view.getId());
+      assertEquals("Wrong view title.", program.getTitle(), view.getTitle());
+      assertEquals("Wrong view channel.", program.getChannelId(), view.getChannelId());
+      assertEquals("Wrong view start time.", program.getScheduledStartTime(), view.getScheduledStartTime());
+      assertEquals("Wrong view end time.", program.getScheduledEndTime(), view.getScheduledEndTime());
+      assertEquals("Decoded program did not match.", new Gson().toJson(program), new Gson().toJson(view.getProgram()));
+    }
+    assertEquals("Wrong search view count.", 48, cache.searchViews(UDN, "0/EPG/1", "").size());
+  }
+
+  /**
+   * Paged EPG search delivers the same programs in the same order as the list search, and can stop early.
+   */
+  public void test_searchEpg_paged() {
+    long start = (System.currentTimeMillis() / DlnaSqlCache.EPG_SLOT_MS) * DlnaSqlCache.EPG_SLOT_MS;
+    cache.save(UDN, buildEpg(start, 4, 48));
+    Date from = new Date(start);
+    Date to = new Date(start + ONE_DAY_MS);
+    List<VideoProgram> programs = cache.searchEpg(UDN, null, from, to);
+    final List<String> pagedIds = new ArrayList<>();
+    int count = cache.searchEpg(UDN, null, from, to, 50, new DlnaCache.PageConsumer<VideoProgram>() {
+      @Override
+      public boolean onPage(@NonNull List<VideoProgram> page) {
+        assertTrue("Page too large.", page.size() <= 50);
+        for (VideoProgram program : page) {
+          pagedIds.add(program.getId());
+        }
+        return true;
+      }
+    });
+    assertEquals("Wrong paged count.", programs.size(), count);
+    for (int i = 0; i < programs.size(); i++) {
+      assertEquals("Paged results out of order.", programs.get(i).getId(), pagedIds.get(i));
+    }
+    // stop after the first page
+    count = cache.searchEpg(UDN, null, from, to, 50, new DlnaCache.PageConsumer<VideoProgram>() {
+      @Override
+      public boolean onPage(@NonNull List<VideoProgram> page) {
+        return false;
+      }
+    });
+    assertEquals("Query did not stop after the first page.", 50, count);
+  }
+
+  /**
+   * Run day-by-day EPG writes through the cache writer while querying the grid, and report read latency percentiles.
+   * With write-ahead logging, reads should not stall for the length of a write.
+   */
+  public void test_concurrentReadWrite_stress() throws InterruptedException {
+    final int days = 14;
+    final int channelCount = 100;
+    final int programsPerDay = (int) (ONE_DAY_MS / PROGRAM_LENGTH_MS);
+    final long start = (System.currentTimeMillis() / DlnaSqlCache.EPG_SLOT_MS) * DlnaSqlCache.EPG_SLOT_MS;
+
+    // write one day per batch, like EpgCachingTask
+    Thread writerThread = new Thread() {
+      @Override
+      public void run() {
+        for (int day = 0; day < days; day++) {
+          cache.addAll(UDN, rekey(buildEpg(start + day * ONE_DAY_MS, channelCount, programsPerDay), String.valueOf(day)));
+          try {
+            Thread.sleep(50);
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+      }
+    };
+
+    List<String> channelIds = new ArrayList<>();
+    for (int channel = 0; channel < 20; channel++) {
+      channelIds.add(String.valueOf(channel));
+    }
+    List<Long> latencies = new ArrayList<>();
+    writerThread.start();
+    while (writerThread.isAlive() || cache.hasPendingWrites()) {
+      long time = System.nanoTime();
+      cache.searchEpg(UDN, channelIds, new Date(start), new Date(start + 3 * DlnaSqlCache.EPG_SLOT_MS));
+      latencies.add(System.nanoTime() - time);
+    }
+    writerThread.join();
+
+    assertTrue("No reads ran during the writes.", latencies.size() > 0);
+    Collections.sort(latencies);
+    long p50 = latencies.get(latencies.size() / 2);
+    long p99 = latencies.get(Math.min(latencies.size() - 1, latencies.size() * 99 / 100));
+    Log.d(TAG, String.format("Reads during writes: %d reads, p50 = %.2fms, p99 = %.2fms.", latencies.size(), p50 / 1e6, p99 / 1e6));
+    assertEquals("Not all days were written.", days * programsPerDay, cache.countEpgItems(UDN, Collections.singletonList("0"), new Date(start), new Date(start + days * ONE_DAY_MS)));
+  }
+
+  /**
+   * Children of a parent are readable as soon as they are added, and the pending write completes as a future.
+   */
+  public void test_getChildren_pendingWrite() throws Exception {
+    Map<String, List<DlnaObject>> parents = buildEpg(System.currentTimeMillis(), 1, 48);
+    String parentId = parents.keySet().iterator().next();
+    cache.addAll(UDN, parents);
+    Future<Integer> write = cache.getPendingWrite(UDN, parentId);
+    List<VideoProgram> children = cache.getChildren(UDN, parentId);
+    assertNotNull("Pending children not returned.", children);
+    assertEquals("Wrong number of pending children.", 48, children.size());
+    if (write != null) {
+      assertEquals("Wrong number of rows written.", 48, (int) write.get(10, TimeUnit.SECONDS));
+    }
+    assertTrue("Write did not complete.", cache.waitForCache(UDN, parentId, 10, TimeUnit.SECONDS));
+    assertNull("Write still pending after completion.", cache.getPendingWrite(UDN, parentId));
+    children = cache.getChildren(UDN, parentId);
+    assertNotNull("Written children not returned.", children);
+    assertEquals("Wrong number of written children.", 48, children.size());
+  }
+
+  /**
+   * Compaction evicts EPG parents that ended before the retention period, then evicts by LRU & end time
+   * to bring a server under its row cap.
+   */
+  public void test_compact_retentionAndCaps() {
+    long now = System.currentTimeMillis();
+    // one expired EPG day and three current ones
+    cache.save(UDN, rekey(buildEpg(now - 3 * ONE_DAY_MS, 1, 48), "old"));
+    cache.save(UDN, buildEpg(now, 3, 48));
+    // a non-EPG container
+    List<DlnaObject> channels = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      VideoBroadcast channel = new VideoBroadcast();
+      channel.setId("0/Channels/" + i);
+      channel.setTitle("Channel " + i);
+      channel.setUpnpClass("object.item.videoItem.videoBroadcast");
+      channels.add(channel);
+    }
+    cache.save(UDN, Collections.singletonMap("0/Channels", channels));
+
+    DlnaSqlCompactor compactor = new DlnaSqlCompactor(cache.db, DlnaSqlCompactor.RETAIN_PAST_MS, 100, DlnaSqlCompactor.MAX_BYTES);
+    // expired day, then the container, then one EPG parent to get from 144 rows to 96
+    compactor.compact(now);
+    assertNull("Expired EPG parent was not evicted.", cache.getChildren(UDN, "0/EPG/0/test/old"));
+    assertNull("Container was not evicted.", cache.getChildren(UDN, "0/Channels"));
+    assertEquals("Wrong number of programs kept.", 96, cache.countEpgItems(UDN, Arrays.asList("0", "1", "2"), new Date(now - 4 * ONE_DAY_MS), new Date(now + ONE_DAY_MS)));
+    assertEquals("Nothing more should be evicted.", 0, compactor.compact(now));
+  }
+
+  static Map<String, List<DlnaObject>> rekey(Map<String, List<DlnaObject>> parents, String suffix) {
+    Map<String, List<DlnaObject>> rekeyed = new LinkedHashMap<>();
+    for (Map.Entry<String, List<DlnaObject>> entry : parents.entrySet()) {
+      rekeyed.put(entry.getKey() + "/" + suffix, entry.getValue());
+    }
+    return rekeyed;
+  }
+
+  /**
+   * IDs and parents containing quotes and LIKE wildcards are passed as bound arguments and match literally.
+   */
+  public void test_queries_quotedIds() {
+    Map<String, List<DlnaObject>> parents = buildEpg(System.currentTimeMillis(), 1, 1);
+    VideoProgram program = (VideoProgram) parents.values().iterator().next().get(0);
+    program.setId("0/VOD/Ocean's_Eleven");
+    Map<String, List<DlnaObject>> quoted = new LinkedHashMap<>();
+    quoted.put("0/VOD/Director's Cut", parents.values().iterator().next());
+    cache.save(UDN, quoted);
+    assertNotNull("Item with quoted ID not found.", cache.getItemById(UDN, "0/VOD/Ocean's_Eleven"));
+    assertNotNull("Parent with quoted ID not found.", cache.getChildren(UDN, "0/VOD/Director's Cut"));
+    assertEquals("Search below quoted parent failed.", 1, cache.search(UDN, "0/VOD/Director's", "Program").size());
+    assertEquals("Underscore matched as a wildcard.", 0, cache.search(UDN, "0/VOD/Director_s", "Program").size());
+  }
+
+  /**
+   * Channel lists longer than the largest bind arity are split into chunks, and chunked results are sorted like a single query.
+   */
+  public void test_countEpgItems_manyChannels() {
+    long now = System.currentTimeMillis();
+    cache.save(UDN, buildEpg(now, 600, 1));
+    List<String> channelIds = new ArrayList<>();
+    for (int i = 0; i < 600; i++) {
+      channelIds.add(String.valueOf(i));
+    }
+    Date time = new Date(now + 1000);
+    assertEquals("Wrong count for chunked channel list.", 600, cache.countEpgItems(UDN, channelIds, time, time));
+    List<VideoProgram> programs = cache.searchEpg(UDN, channelIds, time, time);
+    List<VideoProgram> allPrograms = cache.searchEpg(UDN, null, time, time);
+    assertEquals("Wrong results for chunked channel list.", 600, programs.size());
+    for (int i = 0; i < programs.size(); i++) {
+      assertEquals("Chunked results out of order.", allPrograms.get(i).getId(), programs.get(i).getId());
+      if (i > 0) {
+        assertTrue("Channels not sorted as strings.", programs.get(i - 1).getChannelId().compareTo(programs.get(i).getChannelId()) < 0);
+      }
+    }
+  }
+
+  /**
+   * Programs without a channel ID are cached as children, but no EPG query returns them.
+   */
+  public void test_searchEpg_nullChannel() {
+    long start = (System.currentTimeMillis() / DlnaSqlCache.EPG_SLOT_MS) * DlnaSqlCache.EPG_SLOT_MS;
+    Map<String, List<DlnaObject>> parents = buildEpg(start, 2, 4);
+    ((VideoProgram) parents.get("0/EPG/1/test").get(0)).setChannelId(null);
+    cache.save(UDN, parents);
+    List<String> channelIds = new ArrayList<>();
+    channelIds.add("0");
+    channelIds.add("1");
+    Date from = new Date(start);
+    Date to = new Date(start + 4 * PROGRAM_LENGTH_MS);
+    assertEquals("Program without a channel returned for all channels.", 7, cache.searchEpg(UDN, null, from, to).size());
+    assertEquals("Program without a channel returned for a channel list.", 7, cache.searchEpg(UDN, channelIds, from, to).size());
+    assertEquals("Program without a channel counted.", 7, cache.countEpgItems(UDN, channelIds, from, to));
+    assertEquals("Program without a channel not cached as a child.", 4, cache.getChildren(UDN, "0/EPG/1/test").size());
+  }
+
+  /**
+   * Objects survive a round trip through the binary encoding.
+   */
+  public void test_codec_roundTrip() {
+    VideoProgram program = (VideoProgram) buildEpg(System.currentTimeMillis(), 1, 1).values().iterator().next().get(0);
+    program.setRating("PG-13");
+    program.setIcon("http://server/icon.png");
+    VideoProgram decoded = DlnaObjectCodec.decode(program.getUpnpClass(), DlnaObjectCodec.encode(program));
+    Gson gson = new Gson();
+    assertEquals("Decoded program did not match.", gson.toJson(program), gson.toJson(decoded));
+
+    VideoBroadcast channel = new VideoBroadcast();
+    channel.setId("0/Channels/1");
+    channel.setUpnpClass("object.item.videoItem.videoBroadcast");
+    channel.setTitle("1 xKABC");
+    channel.setCallSign("xKABC");
+    channel.setChannelNumber("1");
+    VideoBroadcast decodedChannel = DlnaObjectCodec.decode(channel.getUpnpClass(), DlnaObjectCodec.encode(channel));
+    assertEquals("Decoded channel did not match.", gson.toJson(channel), gson.toJson(decodedChannel));
+  }
+
+  /**
+   * Compare decode throughput of the binary encoding against Gson.
+   */
+  public void test_codec_decodeBenchmark() {
+    List<DlnaObject> all = new ArrayList<>();
+    for (List<DlnaObject> children : buildEpg(System.currentTimeMillis(), 50, 400).values()) {
+      all.addAll(children);
+    }
+    Gson gson = new Gson();
+    List<String> json = new ArrayList<>();
+    List<byte[]> data = new ArrayList<>();
+    for (DlnaObject program : all) {
+      json.add(gson.toJson(program));
+      data.add(DlnaObjectCodec.encode(program));
+    }
+    String upnpClass = all.get(0).getUpnpClass();
+
+    long time = System.currentTimeMillis();
+    for (String item : json) {
+      gson.fromJson(item, DlnaObjects.DlnaClass.classOf(upnpClass));
+    }
+    long gsonTime = Math.max(1, System.currentTimeMillis() - time);
+
+    time = System.currentTimeMillis();
+    for (byte[] item : data) {
+      DlnaObjectCodec.decode(upnpClass, item);
+    }
+    long codecTime = Math.max(1, System.currentTimeMillis() - time);
+
+    Log.d(TAG, String.format("Gson decode: %d objects in %d ms (%d objects/sec).", all.size(), gsonTime, all.size() * 1000L / gsonTime));
+    Log.d(TAG, String.format("Binary decode: %d objects in %d ms (%d objects/sec).", all.size(), codecTime, all.size() * 1000L / codecTime));
+  }
+
+  /**
+   * A version 8 database with JSON rows is converted to binary encoding on upgrade.
+   */
+  public void test_upgrade_jsonToData() {
+    cache.close();
+    context.deleteDatabase(TEST_DATABASE);
+
+    // build a version 8 database
+    VideoProgram program = (VideoProgram) buildEpg(System.currentTimeMillis(), 1, 1).values().iterator().next().get(0);
+    SQLiteDatabase v8 = context.openOrCreateDatabase(TEST_DATABASE, Context.MODE_PRIVATE, null);
+    v8.execSQL("CREATE TABLE `DLNAObjects` (`UDN` TEXT, `ParentID` TEXT, `ID` TEXT, `Title` TEXT, `UPNPClass` TEXT, `JSON` TEXT, " +
+        "`ChildIndex` INTEGER, `ScheduledStartTime` INTEGER, `ScheduledEndTime` INTEGER, `ChannelID` STRING, PRIMARY KEY(UDN,ParentID,ID));");
+    v8.execSQL("CREATE TABLE `EpgSlots` (`UDN` TEXT, `ChannelID` TEXT, `Slot` INTEGER, `First` INTEGER, `ParentID` TEXT, `ID` TEXT, " +
+        "PRIMARY KEY(UDN,ChannelID,Slot,ParentID,ID));");
+    ContentValues values = new ContentValues();
+    values.put("UDN", UDN);
+    values.put("ParentID", "0/EPG/0/test");
+    values.put("ID", program.getId());
+    values.put("Title", program.getTitle());
+    values.put("UPNPClass", program.getUpnpClass());
+    values.put("JSON", new Gson().toJson(program));
+    values.put("ChildIndex", 0);
+    v8.insert("DLNAObjects", null, values);
+    v8.setVersion(8);
+    v8.close();
+
+    cache = new DlnaSqlCache(context, TEST_DATABASE);
+    VideoProgram migrated = cache.getItemById(UDN, program.getId());
+    assertNotNull("Migrated program not found.", migrated);
+    assertEquals("Migrated program did not match.", new Gson().toJson(program), new Gson().toJson(migrated));
+  }
+
+  /**
+   * A populated version 7 database is migrated in place to the current version, keeping its programs queryable.
+   */
+  public void test_upgrade_fromVersion7() {
+    assertEquals("Migrations do not reach the current version.", DlnaSqlCache.DATABASE_VERSION, DlnaSqlMigrations.getLatestVersion());
+    cache.close();
+    context.deleteDatabase(TEST_DATABASE);
+
+    // build a version 7 database with two channels of programs
+    long start = (System.currentTimeMillis() / DlnaSqlCache.EPG_SLOT_MS) * DlnaSqlCache.EPG_SLOT_MS;
+    Map<String, List<DlnaObject>> parents = buildEpg(start, 2, 48);
+    SQLiteDatabase v7 = context.openOrCreateDatabase(TEST_DATABASE, Context.MODE_PRIVATE, null);
+    v7.execSQL("CREATE TABLE `DLNAObjects` (`UDN` TEXT, `ParentID` TEXT, `ID` TEXT, `Title` TEXT, `UPNPClass` TEXT, `JSON` TEXT, " +
+        "`ChildIndex` INTEGER, `ScheduledStartTime` INTEGER, `ScheduledEndTime` INTEGER, `ChannelID` STRING, PRIMARY KEY(UDN,ParentID,ID));");
+    Gson gson = new Gson();
+    for (Map.Entry<String, List<DlnaObject>> entry : parents.entrySet()) {
+      int childIndex = 0;
+      for (DlnaObject child : entry.getValue()) {
+        VideoProgram program = (VideoProgram) child;
+        ContentValues values = new ContentValues();
+        values.put("UDN", UDN);
+        values.put("ParentID", entry.getKey());
+        values.put("ID", program.getId());
+        values.put("Title", program.getTitle());
+        values.put("UPNPClass", program.getUpnpClass());
+        values.put("JSON", gson.toJson(program));
+        values.put("ChildIndex", childIndex++);
+        values.put("ScheduledStartTime", program.getScheduledStartTime().getTime());
+        values.put("ScheduledEndTime", program.getScheduledEndTime().getTime());
+        values.put("ChannelID", program.getChannelId());
+        v7.insert("DLNAObjects", null, values);
+      }
+    }
+    v7.setVersion(7);
+    v7.close();
+
+    cache = new DlnaSqlCache(context, TEST_DATABASE);
+    List<String> channelIds = Arrays.asList("0", "1");
+    Date from = new Date(start);
+    Date to = new Date(start + 3 * DlnaSqlCache.EPG_SLOT_MS);
+    List<VideoProgram> programs = cache.searchEpg(UDN, channelIds, from, to);
+    assertEquals("Migrated programs not found by EPG search.", 14, programs.size());
+    assertEquals("Migrated program did not match.", gson.toJson(parents.get("0/EPG/0/test").get(0)), gson.toJson(programs.get(0)));
+    assertEquals("Wrong migrated view count.", 14, cache.searchEpgViews(UDN, channelIds, from, to).size());
+    List<VideoProgram> children = cache.getChildren(UDN, "0/EPG/1/test");
+    assertNotNull("Migrated children not found.", children);
+    assertEquals("Wrong number of migrated children.", 48, children.size());
+    Cursor cursor = cache.db.rawQuery("SELECT SUM(Rows) FROM CacheParents WHERE UDN = ?", new String[]{UDN});
+    try {
+      cursor.moveToFirst();
+      assertEquals("Migrated parents not tracked.", 96, cursor.getInt(0));
+    } finally {
+      cursor.close();
+    }
+  }
+
+  /**
+   * Saving a parent replaces its existing children.
+   */
+  public void test_save_replacesChildren() {
+    long now = System.currentTimeMillis();
+    cache.save(UDN, buildEpg(now, 2, 10));
+    cache.save(UDN, buildEpg(now, 2, 5));
+    List<VideoProgram> children = cache.getChildren(UDN, "0/EPG/1/test");
+    assertNotNull("Children were null.", children);
+    assertEquals("Children were not replaced.", 5, children.size());
+  }
+
+  /**
+   * Repeated writes of a parent, as from a paged browse, leave the last list in the database.
+   */
+  public void test_addAll_lastWriteWins() {
+    long now = System.currentTimeMillis();
+    for (int programs = 10; programs <= 100; programs += 10) {
+      cache.addAll(UDN, buildEpg(now, 1, programs));
+    }
+    assertTrue("Write did not complete.", cache.waitForCache(UDN, "0/EPG/0/test", 10, TimeUnit.SECONDS));
+    assertFalse("Writes still pending.", cache.hasPendingWrites());
+    List<VideoProgram> children = cache.getChildren(UDN, "0/EPG/0/test");
+    assertNotNull("Children were null.", children);
+    assertEquals("Last write was dropped.", 100, children.size());
+  }
+
+  /**
+   * Writes after the cache is closed are dropped, not rejected by the writer.
+   */
+  public void test_addAll_afterClose() {
+    cache.close();
+    cache.addAll(UDN, buildEpg(System.currentTimeMillis(), 1, 10));
+    assertFalse("Write was queued after close.", cache.hasPendingWrites());
+  }
+
+  /**
+   * Build synthetic EPG data, one parent per channel.
+   *
+   * @param startTime Start time of the first program on each channel.
+   * @param channels  Number of channels.
+   * @param programs  Number of programs per channel.
+   * @return Map of parent ID to programs.
+   */
+  static Map<String, List<DlnaObject>> buildEpg(long startTime, int channels, int programs) {
+    DateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'Z");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    Map<String, List<DlnaObject>> parents = new LinkedHashMap<>();
+    for (int channel = 0; channel < channels; channel++) {
+      String channelId = String.valueOf(channel);
+      String parentId = "0/EPG/" + channelId + "/test";
+      List<DlnaObject> children = new ArrayList<>();
+      for (int i = 0; i < programs; i++) {
+        long start = startTime + i * PROGRAM_LENGTH_MS;
+        VideoProgram program = new VideoProgram();
+        program.setId(parentId + "/" + i);
+        program.setTitle("Program " + channel + "-" + i);
+        program.setUpnpClass("object.item.epgItem.videoProgram");
+        program.setChannelId(channelId);
+        program.setScheduledStartTime(format.format(start));
+        program.setScheduledEndTime(format.format(start + PROGRAM_LENGTH_MS));
+        program.setScheduleDurationTime("P00:30:00");
+        program.setLongDescription("Synthetic program for cache benchmarks.");
+        children.add(program);
+      }
+      parents.put(parentId, children);
+    }
+    return parents;
+  }
+}
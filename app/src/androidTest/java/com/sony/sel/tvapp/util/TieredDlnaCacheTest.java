@@ -0,0 +1,114 @@
+package com.sony.sel.tvapp.util;
+
+import android.content.Context;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import com.sony.sel.tvapp.util.DlnaObjects.DlnaObject;
+import com.sony.sel.tvapp.util.DlnaObjects.VideoProgram;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the two-tier DLNA cache, run against a scratch database.
+ */
+public class TieredDlnaCacheTest extends InstrumentationTestCase {
+
+  private static final String TAG = TieredDlnaCacheTest.class.getSimpleName();
+
+  private static final String TEST_DATABASE = "dlnacache-test.db";
+  private static final String UDN = "uuid:test-server";
+
+  private Context context;
+  private DlnaSqlCache sqlCache;
+  private TieredDlnaCache cache;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    context = getInstrumentation().getTargetContext();
+    context.deleteDatabase(TEST_DATABASE);
+    sqlCache = new DlnaSqlCache(context, TEST_DATABASE);
+    cache = new TieredDlnaCache(new DlnaMemoryCache(), sqlCache);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    sqlCache.close();
+    context.deleteDatabase(TEST_DATABASE);
+    super.tearDown();
+  }
+
+  /**
+   * Children are written through to both tiers and read back from memory.
+   */
+  public void test_getChildren_writeThrough() {
+    Map<String, List<DlnaObject>> parents = DlnaSqlCacheTest.buildEpg(System.currentTimeMillis(), 4, 10);
+    cache.addAll(UDN, parents);
+    String parentId = parents.keySet().iterator().next();
+    assertTrue("Write did not complete.", sqlCache.waitForCache(UDN, parentId, 10, TimeUnit.SECONDS));
+
+    List<DlnaObject> children = cache.getChildren(UDN, parentId);
+    assertNotNull("Children not found.", children);
+    assertEquals("Wrong child count.", 10, children.size());
+    assertEquals("Children not written to SQLite.", 10, sqlCache.getChildren(UDN, parentId).size());
+    TieredDlnaCache.Stats stats = cache.getStats();
+    assertEquals("Memory tier missed.", 1, stats.getMemoryStats().getHitCount());
+    assertEquals("Read went to SQLite.", 0, stats.getSqlReadCount());
+  }
+
+  /**
+   * EPG queries around the current time are answered from the window with the same results as SQLite,
+   * and adding overlapping programs only reloads their channels.
+   */
+  public void test_searchEpg_window() {
+    long hour = DlnaSqlCache.getEpgSlot(System.currentTimeMillis()) * DlnaSqlCache.EPG_SLOT_MS;
+    Map<String, List<DlnaObject>> parents = DlnaSqlCacheTest.buildEpg(hour - 2 * DlnaSqlCache.EPG_SLOT_MS, 8, 24);
+    cache.addAll(UDN, parents);
+    for (String parentId : parents.keySet()) {
+      assertTrue("Write did not complete.", sqlCache.waitForCache(UDN, parentId, 10, TimeUnit.SECONDS));
+    }
+
+    Date start = new Date(hour);
+    Date end = new Date(hour + 3 * DlnaSqlCache.EPG_SLOT_MS);
+    List<VideoProgram> expected = sqlCache.searchEpg(UDN, null, start, end);
+    List<VideoProgram> programs = cache.searchEpg(UDN, null, start, end);
+    assertEquals("Window results did not match SQLite.", ids(expected), ids(programs));
+    List<String> channelIds = Arrays.asList("0", "1", "2", "3", "4", "5", "6", "7");
+    assertEquals("Window count did not match SQLite.", expected.size(), cache.countEpgItems(UDN, channelIds, start, end));
+    assertEquals("Wrong view count.", expected.size(), cache.searchEpgViews(UDN, null, start, end).size());
+    TieredDlnaCache.Stats stats = cache.getStats();
+    Log.d(TAG, "After window queries: " + stats + ".");
+    assertEquals("Window loaded more than once.", 1, stats.getWindowLoadCount());
+    assertEquals("Window was not reused.", 2, stats.getWindowHitCount());
+
+    // replace a channel, with programs overlapping the window
+    Map<String, List<DlnaObject>> replacement = DlnaSqlCacheTest.buildEpg(hour - 2 * DlnaSqlCache.EPG_SLOT_MS, 1, 25);
+    cache.addAll(UDN, replacement);
+    assertTrue("Write did not complete.", sqlCache.waitForCache(UDN, "0/EPG/0/test", 10, TimeUnit.SECONDS));
+    List<String> otherChannel = Arrays.asList("1");
+    assertEquals("Unchanged channel did not match SQLite.", ids(sqlCache.searchEpg(UDN, otherChannel, start, end)),
+        ids(cache.searchEpg(UDN, otherChannel, start, end)));
+    assertEquals("Unchanged channel was reloaded.", 1, cache.getStats().getWindowLoadCount());
+    programs = cache.searchEpg(UDN, null, start, end);
+    assertEquals("Window was not invalidated.", ids(sqlCache.searchEpg(UDN, null, start, end)), ids(programs));
+    assertEquals("Changed channel was not reloaded.", 2, cache.getStats().getWindowLoadCount());
+
+    // queries outside the window go to SQLite
+    long sqlReads = cache.getStats().getSqlReadCount();
+    cache.searchEpg(UDN, null, new Date(hour + 12 * DlnaSqlCache.EPG_SLOT_MS), new Date(hour + 13 * DlnaSqlCache.EPG_SLOT_MS));
+    assertEquals("Query outside the window did not use SQLite.", sqlReads + 1, cache.getStats().getSqlReadCount());
+  }
+
+  private static String ids(List<VideoProgram> programs) {
+    StringBuilder ids = new StringBuilder();
+    for (VideoProgram program : programs) {
+      ids.append(program.getId()).append('\n');
+    }
+    return ids.toString();
+  }
+}
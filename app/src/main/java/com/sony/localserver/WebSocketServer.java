@@ -3,11 +3,14 @@ package com.sony.localserver;
 
 import android.os.Handler;
 import android.os.Looper;
+import android.support.annotation.NonNull;
 import android.util.Log;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonIOException;
 import com.google.gson.annotations.SerializedName;
+import com.google.gson.stream.JsonWriter;
 import com.sony.sel.tvapp.util.DlnaCache;
 import com.sony.sel.tvapp.util.DlnaInterface;
 import com.sony.sel.tvapp.util.DlnaObjects;
@@ -18,6 +21,7 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.io.StringWriter;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -38,6 +42,9 @@ public class WebSocketServer extends NanoWSD {
 
   public static final String TAG = WebSocketServer.class.getSimpleName();
 
+  /// Number of programs read from the cache at a time when building EPG responses
+  private static final int EPG_PAGE_SIZE = 500;
+
   private LocalWebSocket ws;
   private String udn;
   private DlnaInterface dlnaHelper;
@@ -201,6 +208,8 @@ public class WebSocketServer extends NanoWSD {
 
     /**
      * Process a request to search the EPG cache.
+     * The response is an object with PROGRAMS, FAVORITES, CHANNELS and CURRENT fields.
+     * It is written with a streaming JSON writer so programs are released as each page is serialized.
      *
      * @param payload message payload.
      * @return response in JSON format.
@@ -209,39 +218,55 @@ public class WebSocketServer extends NanoWSD {
       // parse request from JSON
       SearchEpgCacheRequest request = new Gson().fromJson(payload, SearchEpgCacheRequest.class);
 
-      List<VideoProgram> epgData;
-      if (request.getData().getTimes().size() == 2 && request.getData().getChannels().size() > 0) {
-
-        // extract dates
-        Date startDate = new Date(Long.parseLong(request.getData().getTimes().get(0)));
-        Date endDate = new Date(Long.parseLong(request.getData().getTimes().get(1)));
-
-        // get data
-        epgData = dlnaCache.searchEpg(udn, request.getData().getChannels(), startDate, endDate);
-
-      } else {
-        Log.e(TAG, "Invalid request data.");
-        epgData = new ArrayList<>();
-      }
-
-      // create response
-      SearchEpgCacheResponse response = new SearchEpgCacheResponse(
-          epgData,
-          settingsHelper.getFavoriteChannels(),
-          getChannelIds(),
-          settingsHelper.getCurrentChannel().getChannelId()
-      );
+      final Gson gson = new GsonBuilder().
+          registerTypeAdapter(VideoProgram.class, new VideoProgram.WebSerializer())
+          .disableHtmlEscaping()
+          .create();
 
-      // convert to JSON
+      // build the response JSON directly, serializing programs one page at a time from the cache
       Log.d(TAG, "Search EPG cache. Building JSON response.");
       long time = System.currentTimeMillis();
-      String json = new GsonBuilder().
-          registerTypeAdapter(VideoProgram.class, new VideoProgram.WebSerializer())
-          .disableHtmlEscaping()
-          .create()
-          .toJson(response);
+      StringWriter json = new StringWriter();
+      try {
+        final JsonWriter writer = gson.newJsonWriter(json);
+        writer.beginObject();
+        writer.name("PROGRAMS");
+        writer.beginArray();
+        if (request.getData().getTimes().size() == 2 && request.getData().getChannels().size() > 0) {
+
+          // extract dates
+          Date startDate = new Date(Long.parseLong(request.getData().getTimes().get(0)));
+          Date endDate = new Date(Long.parseLong(request.getData().getTimes().get(1)));
+
+          // get data
+          dlnaCache.searchEpg(udn, request.getData().getChannels(), startDate, endDate, EPG_PAGE_SIZE, new DlnaCache.PageConsumer<VideoProgram>() {
+            @Override
+            public boolean onPage(@NonNull List<VideoProgram> page) {
+              for (VideoProgram program : page) {
+                gson.toJson(program, VideoProgram.class, writer);
+              }
+              return true;
+            }
+          });
+
+        } else {
+          Log.e(TAG, "Invalid request data.");
+        }
+        writer.endArray();
+        writer.name("FAVORITES");
+        gson.toJson(settingsHelper.getFavoriteChannels(), Set.class, writer);
+        writer.name("CHANNELS");
+        gson.toJson(getChannelIds(), List.class, writer);
+        writer.name("CURRENT");
+        writer.value(settingsHelper.getCurrentChannel().getChannelId());
+        writer.endObject();
+        writer.close();
+      } catch (IOException e) {
+        // a StringWriter does not throw
+        throw new JsonIOException(e);
+      }
       Log.d(TAG, "Search EPG cache. JSON response took " + (System.currentTimeMillis() - time) + "ms to build.");
-      return json;
+      return json.toString();
     }
 
     /**
@@ -286,8 +311,8 @@ public class WebSocketServer extends NanoWSD {
           // iterate programs and generate map entries
           Map<String, VideoProgram> programMap = new LinkedHashMap<>();
           for (VideoProgram program : programs) {
-            if (program.getScheduledStartTime().getTime() <= endDate.getTime() && program.getScheduledEndTime().getTime() >= startDate.getTime()) {
-              programMap.put(String.valueOf(program.getScheduledStartTime().getTime()), program);
+            if (program.getScheduledStartMillis() <= endDate.getTime() && program.getScheduledEndMillis() >= startDate.getTime()) {
+              programMap.put(String.valueOf(program.getScheduledStartMillis()), program);
             }
           }
           // add programs to the day map
@@ -530,24 +555,6 @@ public class WebSocketServer extends NanoWSD {
     }
   }
 
-  static class SearchEpgCacheResponse {
-    @SerializedName("PROGRAMS")
-    List<VideoProgram> programs;
-    @SerializedName("FAVORITES")
-    Set<String> favorites;
-    @SerializedName("CHANNELS")
-    List<String> channels;
-    @SerializedName("CURRENT")
-    String currentChannel;
-
-    public SearchEpgCacheResponse(List<VideoProgram> programs, Set<String> favorites, List<String> channels, String currentChannel) {
-      this.programs = programs;
-      this.favorites = favorites;
-      this.channels = channels;
-      this.currentChannel = currentChannel;
-    }
-  }
-
   /**
    * Class for the channel list response JSON.
    */
@@ -19,6 +19,7 @@ import com.sony.sel.tvapp.util.DlnaObjects.VideoBroadcast;
 import com.sony.sel.tvapp.util.DlnaObjects.VideoItem;
 import com.sony.sel.tvapp.util.DlnaObjects.VideoProgram;
 import com.sony.sel.tvapp.util.SettingsHelper;
+import com.sony.sel.tvapp.util.VideoProgramView;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -65,18 +66,19 @@ public class EpgSearchContentProvider extends ContentProvider {
 
   Cursor searchEpg(String query) {
     Log.d(TAG, "Search EPG for \"" + query + "\".");
-    List<VideoProgram> epgSearch = cache.search(settingsHelper.getEpgServer(), "0/EPG", query);
-    List<VideoProgram> results = new ArrayList<>();
+    // suggestions only need promoted fields, so programs are not loaded
+    List<VideoProgramView> epgSearch = cache.searchViews(settingsHelper.getEpgServer(), "0/EPG", query);
+    List<VideoProgramView> results = new ArrayList<>();
     Date now = new Date();
-    for (VideoProgram program : epgSearch) {
+    for (VideoProgramView program : epgSearch) {
       if (program.getScheduledEndTime().after(now)) {
         results.add(program);
       }
     }
     // sort EPG by date & time
-    Collections.sort(results, new Comparator<VideoProgram>() {
+    Collections.sort(results, new Comparator<VideoProgramView>() {
       @Override
-      public int compare(VideoProgram lhs, VideoProgram rhs) {
+      public int compare(VideoProgramView lhs, VideoProgramView rhs) {
         return (lhs.getScheduledStartTime().compareTo(rhs.getScheduledStartTime()));
       }
     });
@@ -135,10 +137,10 @@ public class EpgSearchContentProvider extends ContentProvider {
 
   private class EpgSearchSuggestionsCursor extends AbstractCursor {
 
-    private final List<VideoProgram> dlnaObjects;
+    private final List<VideoProgramView> dlnaObjects;
     private final Map<String, VideoBroadcast> channelMap = new HashMap<>();
 
-    public EpgSearchSuggestionsCursor(List<VideoProgram> dlnaObjects, List<VideoBroadcast> channels) {
+    public EpgSearchSuggestionsCursor(List<VideoProgramView> dlnaObjects, List<VideoBroadcast> channels) {
       this.dlnaObjects = dlnaObjects;
       for (VideoBroadcast channel : channels) {
         channelMap.put(channel.getChannelId(), channel);
@@ -157,7 +159,7 @@ public class EpgSearchContentProvider extends ContentProvider {
 
     @Override
     public String getString(int column) {
-      VideoProgram data = dlnaObjects.get(getPosition());
+      VideoProgramView data = dlnaObjects.get(getPosition());
       switch (column) {
         case 1:
           if (data.getProgramTitle() != null && data.getProgramTitle().length() > 0) {
@@ -189,7 +191,7 @@ public class EpgSearchContentProvider extends ContentProvider {
 
     @Override
     public int getInt(int column) {
-      VideoProgram data = dlnaObjects.get(getPosition());
+      VideoProgramView data = dlnaObjects.get(getPosition());
       switch (column) {
         case 0:
           return Integer.valueOf(data.getId());
@@ -14,6 +14,7 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
 
 /**
@@ -130,21 +131,23 @@ public class EpgCachingTask extends AsyncTask<Void, Void, Void> {
       Log.w(TAG, "Incomplete cached EPG data for " + day + ". Expected count = " + channelIds.size() + ", actual count = " + cacheCount + ".");
     }
 
-    // need to cache EPG for this day
-    int programCount = 0;
+    // need to cache EPG for this day, get container IDs for each channel & day
+    List<String> parentIds = new ArrayList<>();
     for (String channelId : channelIds) {
-      Log.d(TAG, "Caching EPG data for channel " + channelId + " " + day + ".");
-
-      // get container ID for channel & day
-      String parentId = "0/EPG/" + channelId + "/" + day;
+      parentIds.add("0/EPG/" + channelId + "/" + day);
+    }
 
-      // get EPG data from server
-      List<VideoProgram> programs = dlnaHelper.getChildren(udn, parentId, VideoProgram.class, null, false);
+    // get EPG data from server, cancelling the task interrupts the batch
+    Log.d(TAG, "Caching EPG data for " + parentIds.size() + " channels " + day + ".");
+    Map<String, List<VideoProgram>> batch = dlnaHelper.getChildrenBatch(udn, parentIds, VideoProgram.class, false);
+    if (isCancelled() || batch.size() < parentIds.size()) {
+      // a cancelled batch omits the channels it didn't browse, so the day isn't cached
+      Log.w(TAG, "Caching EPG data for " + day + " cancelled after " + batch.size() + " channels.");
+      return false;
+    }
+    int programCount = 0;
+    for (List<VideoProgram> programs : batch.values()) {
       programCount += programs.size();
-
-      if (isCancelled()) {
-        return programCount > 0;
-      }
     }
     return programCount > 0;
   }
@@ -6,6 +6,7 @@ import android.util.Log;
 import com.sony.sel.tvapp.util.DlnaInterface;
 import com.sony.sel.tvapp.util.DlnaObjects;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -27,14 +28,17 @@ public class VodCachingTask extends AsyncTask<Void, Void, Void> {
   protected Void doInBackground(Void... params) {
     Log.d(TAG, "Caching VOD containers.");
     List<DlnaObjects.DlnaObject> vodContainers = dlnaHelper.getChildren(udn, "0/VOD", DlnaObjects.DlnaObject.class, null, true);
+    if (isCancelled()) {
+      // bail out, task was cancelled
+      return null;
+    }
+    List<String> containerIds = new ArrayList<>();
     for (DlnaObjects.DlnaObject container : vodContainers) {
-      Log.d(TAG, "Caching " + container.getId() + ".");
-      dlnaHelper.getChildren(udn, container.getId(), DlnaObjects.DlnaObject.class, null, true);
-      if (isCancelled()) {
-        // bail out, task was cancelled
-        return null;
-      }
+      containerIds.add(container.getId());
     }
+    Log.d(TAG, String.format("Caching %d containers.", containerIds.size()));
+    // cancelling the task interrupts the batch
+    dlnaHelper.getChildrenBatch(udn, containerIds, DlnaObjects.DlnaObject.class, true);
     return null;
   }
 
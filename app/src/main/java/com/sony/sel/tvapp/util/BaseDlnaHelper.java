@@ -4,7 +4,9 @@ import android.content.Context;
 import android.database.ContentObserver;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.util.Log;
 
+import com.sony.sel.tvapp.util.DlnaObjects.DlnaObject;
 import com.sony.sel.tvapp.util.DlnaObjects.VideoBroadcast;
 
 import java.text.DateFormat;
@@ -14,18 +16,92 @@ import java.util.Calendar;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Base helper functionality independent of implementation.
  */
 public abstract class BaseDlnaHelper implements DlnaInterface {
 
+  private static final String TAG = BaseDlnaHelper.class.getSimpleName();
+
+  /// Default maximum number of concurrent browses per server
+  public static final int DEFAULT_MAX_CONCURRENT_BROWSES = 4;
+
+  /// Time an idle browse thread is kept
+  private static final long BROWSE_THREAD_KEEP_ALIVE_MS = 30000;
+
+  /**
+   * A request for children that may be shared by concurrent callers.
+   */
+  protected interface ChildrenRequest {
+    @NonNull
+    List<DlnaObject> getChildren();
+  }
+
+  /**
+   * A shared request in progress and its result.
+   */
+  private static class InFlightRequest {
+
+    final CountDownLatch done = new CountDownLatch(1);
+    List<DlnaObject> result;
+    RuntimeException error;
+  }
+
+  /**
+   * Limits the number of actions running at once on one server. The limit can change while actions run.
+   */
+  private static class BrowseLimiter {
+
+    private int limit = DEFAULT_MAX_CONCURRENT_BROWSES;
+    private int running;
+
+    synchronized void acquire() throws InterruptedException {
+      while (running >= limit) {
+        wait();
+      }
+      running++;
+    }
+
+    synchronized void release() {
+      running--;
+      notifyAll();
+    }
+
+    synchronized void setLimit(int limit) {
+      this.limit = limit;
+      notifyAll();
+    }
+  }
+
   private final Context context;
   private ContentObserver channelObserver;
 
+  /// Shared requests in progress by key
+  private final Map<String, InFlightRequest> inFlightRequests = new HashMap<>();
+  private final AtomicLong requestCount = new AtomicLong();
+  private final AtomicLong coalescedCount = new AtomicLong();
+
+  /// Browse threads for batches, by server UDN
+  private final Map<String, ThreadPoolExecutor> browsePools = new HashMap<>();
+
+  /// Limits on concurrent actions, by server UDN
+  private final Map<String, BrowseLimiter> browseLimiters = new HashMap<>();
+
   public BaseDlnaHelper(Context context) {
     this.context = context.getApplicationContext();
   }
@@ -34,6 +110,192 @@ public abstract class BaseDlnaHelper implements DlnaInterface {
     return context;
   }
 
+  /**
+   * Run a request for children, or wait for the same request already in progress and share its result.
+   * Each caller gets its own copy of the result list. An exception thrown by the request is thrown to all callers.
+   *
+   * @param key       Key identifying the request, e.g. UDN & parent ID.
+   * @param shareable False if the request's result must not be shared, e.g. it is incomplete.
+   *                  The request still joins a shareable request in progress.
+   * @param request   The request.
+   * @return The children.
+   */
+  @NonNull
+  protected List<DlnaObject> coalesce(@NonNull String key, boolean shareable, @NonNull ChildrenRequest request) {
+    InFlightRequest inFlight;
+    boolean leader = false;
+    synchronized (inFlightRequests) {
+      inFlight = inFlightRequests.get(key);
+      if (inFlight == null && shareable) {
+        inFlight = new InFlightRequest();
+        inFlightRequests.put(key, inFlight);
+        leader = true;
+      }
+    }
+    if (inFlight == null) {
+      // nothing to join, and this result can't be shared
+      requestCount.incrementAndGet();
+      return request.getChildren();
+    }
+    if (leader) {
+      requestCount.incrementAndGet();
+      try {
+        inFlight.result = request.getChildren();
+      } catch (RuntimeException e) {
+        inFlight.error = e;
+        throw e;
+      } finally {
+        synchronized (inFlightRequests) {
+          inFlightRequests.remove(key);
+        }
+        inFlight.done.countDown();
+      }
+      return new ArrayList<>(inFlight.result);
+    }
+    coalescedCount.incrementAndGet();
+    Log.d(TAG, "Joined request in progress: " + key + ".");
+    try {
+      inFlight.done.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return new ArrayList<>();
+    }
+    if (inFlight.error != null) {
+      throw inFlight.error;
+    }
+    return new ArrayList<>(inFlight.result);
+  }
+
+  @NonNull
+  @Override
+  public <T extends DlnaObject> Map<String, List<T>> getChildrenBatch(final String udn, List<String> parentIds, final Class<T> childClass, final boolean useCache) {
+    ThreadPoolExecutor pool = getBrowsePool(udn);
+    Map<String, Future<List<T>>> futures = new LinkedHashMap<>();
+    for (final String parentId : parentIds) {
+      if (!futures.containsKey(parentId)) {
+        futures.put(parentId, pool.submit(new Callable<List<T>>() {
+          @Override
+          public List<T> call() throws Exception {
+            return getChildren(udn, parentId, childClass, null, useCache);
+          }
+        }));
+      }
+    }
+    Map<String, List<T>> results = new LinkedHashMap<>();
+    try {
+      for (Map.Entry<String, Future<List<T>>> future : futures.entrySet()) {
+        try {
+          results.put(future.getKey(), future.getValue().get());
+        } catch (ExecutionException e) {
+          Log.e(TAG, "Error getting children of " + future.getKey() + ": " + e.getCause());
+          results.put(future.getKey(), new ArrayList<T>());
+        }
+      }
+    } catch (InterruptedException e) {
+      // cancel the rest of the batch, interrupting browses in progress
+      for (Future<List<T>> future : futures.values()) {
+        future.cancel(true);
+      }
+      Thread.currentThread().interrupt();
+    }
+    return results;
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p/>
+   * This implementation delivers the results of {@link #search(String, String, String, Class)} as a single page.
+   */
+  @Override
+  public <T extends DlnaObject> int search(String udn, String parentId, String query, Class<T> childClass, @NonNull DlnaCache.PageConsumer<T> consumer) {
+    List<T> results = search(udn, parentId, query, childClass);
+    if (!results.isEmpty()) {
+      consumer.onPage(results);
+    }
+    return results.size();
+  }
+
+  @Override
+  public void setMaxConcurrentBrowses(@NonNull String udn, int limit) {
+    if (limit <= 0) {
+      throw new IllegalArgumentException("Limit must be positive.");
+    }
+    getBrowseLimiter(udn).setLimit(limit);
+    ThreadPoolExecutor pool = getBrowsePool(udn);
+    synchronized (pool) {
+      // the maximum size can't be set below the core size
+      if (limit > pool.getMaximumPoolSize()) {
+        pool.setMaximumPoolSize(limit);
+        pool.setCorePoolSize(limit);
+      } else {
+        pool.setCorePoolSize(limit);
+        pool.setMaximumPoolSize(limit);
+      }
+    }
+  }
+
+  /**
+   * Wait until another action may be sent to a server, within the limit set by {@link #setMaxConcurrentBrowses(String, int)}.
+   * Every Browse or Search sent to a server should be bracketed by this and {@link #releaseBrowse(String)}.
+   *
+   * @param udn Device UDN.
+   * @throws InterruptedException if the calling thread is interrupted while waiting.
+   */
+  protected void acquireBrowse(@NonNull String udn) throws InterruptedException {
+    getBrowseLimiter(udn).acquire();
+  }
+
+  /**
+   * Note that an action started by {@link #acquireBrowse(String)} has finished.
+   *
+   * @param udn Device UDN.
+   */
+  protected void releaseBrowse(@NonNull String udn) {
+    getBrowseLimiter(udn).release();
+  }
+
+  private BrowseLimiter getBrowseLimiter(String udn) {
+    synchronized (browseLimiters) {
+      BrowseLimiter limiter = browseLimiters.get(udn);
+      if (limiter == null) {
+        limiter = new BrowseLimiter();
+        browseLimiters.put(udn, limiter);
+      }
+      return limiter;
+    }
+  }
+
+  /**
+   * Return the thread pool for browsing a server, creating it if needed.
+   */
+  private ThreadPoolExecutor getBrowsePool(String udn) {
+    synchronized (browsePools) {
+      ThreadPoolExecutor pool = browsePools.get(udn);
+      if (pool == null) {
+        pool = new ThreadPoolExecutor(DEFAULT_MAX_CONCURRENT_BROWSES, DEFAULT_MAX_CONCURRENT_BROWSES,
+            BROWSE_THREAD_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+        // idle servers don't keep threads
+        pool.allowCoreThreadTimeOut(true);
+        browsePools.put(udn, pool);
+      }
+      return pool;
+    }
+  }
+
+  /**
+   * @return Number of requests run by {@link #coalesce(String, boolean, ChildrenRequest)}.
+   */
+  public long getRequestCount() {
+    return requestCount.get();
+  }
+
+  /**
+   * @return Number of requests saved by sharing a request already in progress.
+   */
+  public long getCoalescedCount() {
+    return coalescedCount.get();
+  }
+
   @NonNull
   @Override
   public List<VideoBroadcast> getChannels(@NonNull String udn, @Nullable ContentObserver contentObserver, boolean useCache) {
@@ -76,7 +338,7 @@ public abstract class BaseDlnaHelper implements DlnaInterface {
     String day = format.format(now);
     List<DlnaObjects.VideoProgram> shows = getChildren(udn, "0/EPG/" + channel.getChannelId() + "/" + day, DlnaObjects.VideoProgram.class, null, true);
     for (DlnaObjects.VideoProgram show : shows) {
-      if (show.getScheduledStartTime().before(now) && show.getScheduledEndTime().after(now)) {
+      if (show.getScheduledStartMillis() < now.getTime() && show.getScheduledEndMillis() > now.getTime()) {
         // show was found
         return show;
       }
@@ -98,7 +360,7 @@ public abstract class BaseDlnaHelper implements DlnaInterface {
       String day = format.format(calendar.getTime());
       List<DlnaObjects.VideoProgram> dayShows = getChildren(udn, "0/EPG/" + channel.getChannelId() + "/" + day, DlnaObjects.VideoProgram.class, null, true);
       for (DlnaObjects.VideoProgram show : dayShows) {
-        if (show.getScheduledStartTime().before(endDate) && show.getScheduledEndTime().after(startDate)) {
+        if (show.getScheduledStartMillis() < endDate.getTime() && show.getScheduledEndMillis() > startDate.getTime()) {
           // matching date/time range, add to results
           shows.add(show);
         }
@@ -13,11 +13,16 @@ import android.util.Log;
 import com.sony.sel.tvapp.util.DlnaObjects.DlnaObject;
 import com.sony.sel.tvapp.util.DlnaObjects.VideoProgram;
 import com.sony.sel.util.ObserverSet;
+import com.sony.sel.util.ThreadUtils;
 
 import org.fourthline.cling.android.AndroidUpnpService;
 import org.fourthline.cling.android.AndroidUpnpServiceImpl;
+import org.fourthline.cling.controlpoint.ActionCallback;
+import org.fourthline.cling.model.action.ActionArgumentValue;
+import org.fourthline.cling.model.action.ActionException;
 import org.fourthline.cling.model.action.ActionInvocation;
 import org.fourthline.cling.model.message.UpnpResponse;
+import org.fourthline.cling.model.meta.Action;
 import org.fourthline.cling.model.meta.Device;
 import org.fourthline.cling.model.meta.Icon;
 import org.fourthline.cling.model.meta.RemoteDevice;
@@ -25,15 +30,18 @@ import org.fourthline.cling.model.meta.RemoteDeviceIdentity;
 import org.fourthline.cling.model.meta.Service;
 import org.fourthline.cling.model.types.UDAServiceType;
 import org.fourthline.cling.model.types.UDN;
+import org.fourthline.cling.model.types.UnsignedIntegerFourBytes;
 import org.fourthline.cling.registry.DefaultRegistryListener;
 import org.fourthline.cling.registry.Registry;
 import org.fourthline.cling.registry.RegistryListener;
 import org.fourthline.cling.support.contentdirectory.callback.Browse;
 import org.fourthline.cling.support.contentdirectory.callback.Search;
 import org.fourthline.cling.support.model.BrowseFlag;
+import org.fourthline.cling.support.model.BrowseResult;
 import org.fourthline.cling.support.model.DIDLContent;
 import org.fourthline.cling.support.model.DIDLObject;
 import org.fourthline.cling.support.model.Res;
+import org.fourthline.cling.support.model.SearchResult;
 import org.fourthline.cling.support.model.container.Container;
 import org.fourthline.cling.support.model.item.Item;
 import org.fourthline.cling.support.model.item.VideoBroadcast;
@@ -46,7 +54,20 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Implementation of DLNA helper based on cling DLNA libraries.
@@ -55,8 +76,397 @@ public class ClingDlnaHelper extends BaseDlnaHelper {
 
   private static final String TAG = ClingDlnaHelper.class.getSimpleName();
 
+  /// Default number of objects requested by each Browse
+  public static final int DEFAULT_BROWSE_PAGE_SIZE = 200;
+
+  /// Number of parents whose later Browse pages are fetched at the same time
+  private static final int BROWSE_THREADS = 2;
+
+  /// Time to wait for each Browse response
+  private static final long BROWSE_TIMEOUT_MS = 15000;
+
+  /// Number of attempts for a Browse that times out or gets no response
+  private static final int BROWSE_ATTEMPTS = 3;
+
+  /// Delay before the first retry, doubled for each later retry
+  private static final long BROWSE_RETRY_DELAY_MS = 1000;
+
+  /// Start of the failure message when Cling can't parse the DIDL-Lite in a Browse or Search response
+  private static final String DIDL_PARSE_FAILURE = "Can't parse DIDL XML response";
+
+  /// Maximum number of parents browsed in the background after one search
+  private static final int MAX_SEARCH_REFRESHES = 2;
+
+  /// Minimum time between background browses of the same parent after searches
+  private static final long SEARCH_REFRESH_INTERVAL_MS = 60 * 60 * 1000;
+
+  /// Delay that batches device changes into one observer notification
+  private static final long DEVICE_NOTIFY_DELAY_MS = 250;
+
+  /**
+   * Copies a DIDL property value to a DLNA object.
+   */
+  interface PropertySetter<T extends DlnaObject> {
+    void set(T dest, String value);
+  }
+
+  /// DIDL property setters for video items, by descriptor name
+  static final Map<String, PropertySetter<DlnaObjects.VideoItem>> VIDEO_ITEM_SETTERS = new HashMap<>();
+
+  /// DIDL property setters for EPG programs, by descriptor name
+  static final Map<String, PropertySetter<VideoProgram>> VIDEO_PROGRAM_SETTERS = new HashMap<>();
+
+  static {
+    VIDEO_ITEM_SETTERS.put("channelID", new PropertySetter<DlnaObjects.VideoItem>() {
+      @Override
+      public void set(DlnaObjects.VideoItem dest, String value) {
+        dest.setChannelId(value);
+      }
+    });
+    VIDEO_ITEM_SETTERS.put("rating", new PropertySetter<DlnaObjects.VideoItem>() {
+      @Override
+      public void set(DlnaObjects.VideoItem dest, String value) {
+        dest.addRating(value);
+      }
+    });
+    VIDEO_ITEM_SETTERS.put("language", new PropertySetter<DlnaObjects.VideoItem>() {
+      @Override
+      public void set(DlnaObjects.VideoItem dest, String value) {
+        dest.setLanguage(value);
+      }
+    });
+    VIDEO_ITEM_SETTERS.put("genre", new PropertySetter<DlnaObjects.VideoItem>() {
+      @Override
+      public void set(DlnaObjects.VideoItem dest, String value) {
+        dest.setGenre(value);
+      }
+    });
+    VIDEO_ITEM_SETTERS.put("programTitle", new PropertySetter<DlnaObjects.VideoItem>() {
+      @Override
+      public void set(DlnaObjects.VideoItem dest, String value) {
+        dest.setProgramTitle(value);
+      }
+    });
+    VIDEO_ITEM_SETTERS.put("icon", new PropertySetter<DlnaObjects.VideoItem>() {
+      @Override
+      public void set(DlnaObjects.VideoItem dest, String value) {
+        dest.setIcon(value);
+      }
+    });
+    VIDEO_ITEM_SETTERS.put("actor", new PropertySetter<DlnaObjects.VideoItem>() {
+      @Override
+      public void set(DlnaObjects.VideoItem dest, String value) {
+        dest.addActor(value);
+      }
+    });
+
+    VIDEO_PROGRAM_SETTERS.put("icon", new PropertySetter<VideoProgram>() {
+      @Override
+      public void set(VideoProgram dest, String value) {
+        dest.setIcon(value);
+      }
+    });
+    VIDEO_PROGRAM_SETTERS.put("rating", new PropertySetter<VideoProgram>() {
+      @Override
+      public void set(VideoProgram dest, String value) {
+        dest.setRating(value);
+      }
+    });
+    VIDEO_PROGRAM_SETTERS.put("genre", new PropertySetter<VideoProgram>() {
+      @Override
+      public void set(VideoProgram dest, String value) {
+        dest.setGenre(value);
+      }
+    });
+    VIDEO_PROGRAM_SETTERS.put("scheduledStartTime", new PropertySetter<VideoProgram>() {
+      @Override
+      public void set(VideoProgram dest, String value) {
+        dest.setScheduledStartTime(value);
+      }
+    });
+    VIDEO_PROGRAM_SETTERS.put("scheduledEndTime", new PropertySetter<VideoProgram>() {
+      @Override
+      public void set(VideoProgram dest, String value) {
+        dest.setScheduledEndTime(value);
+      }
+    });
+    VIDEO_PROGRAM_SETTERS.put("scheduledDurationTime", new PropertySetter<VideoProgram>() {
+      @Override
+      public void set(VideoProgram dest, String value) {
+        dest.setScheduleDurationTime(value);
+      }
+    });
+    VIDEO_PROGRAM_SETTERS.put("longDescription", new PropertySetter<VideoProgram>() {
+      @Override
+      public void set(VideoProgram dest, String value) {
+        dest.setLongDescription(value);
+      }
+    });
+    VIDEO_PROGRAM_SETTERS.put("programTitle", new PropertySetter<VideoProgram>() {
+      @Override
+      public void set(VideoProgram dest, String value) {
+        dest.setProgramTitle(value);
+      }
+    });
+    VIDEO_PROGRAM_SETTERS.put("programID", new PropertySetter<VideoProgram>() {
+      @Override
+      public void set(VideoProgram dest, String value) {
+        dest.setProgramId(value);
+      }
+    });
+    VIDEO_PROGRAM_SETTERS.put("seriesID", new PropertySetter<VideoProgram>() {
+      @Override
+      public void set(VideoProgram dest, String value) {
+        dest.setSeriesId(value);
+      }
+    });
+    VIDEO_PROGRAM_SETTERS.put("episodeNumber", new PropertySetter<VideoProgram>() {
+      @Override
+      public void set(VideoProgram dest, String value) {
+        dest.setEpisodeNumber(value);
+      }
+    });
+    VIDEO_PROGRAM_SETTERS.put("episodeSeason", new PropertySetter<VideoProgram>() {
+      @Override
+      public void set(VideoProgram dest, String value) {
+        dest.setEpisodeSeason(value);
+      }
+    });
+    VIDEO_PROGRAM_SETTERS.put("episodeType", new PropertySetter<VideoProgram>() {
+      @Override
+      public void set(VideoProgram dest, String value) {
+        dest.setEpisodeType(value);
+      }
+    });
+    VIDEO_PROGRAM_SETTERS.put("channelID", new PropertySetter<VideoProgram>() {
+      @Override
+      public void set(VideoProgram dest, String value) {
+        dest.setChannelId(value);
+      }
+    });
+  }
+
+  /**
+   * One page of Browse results.
+   */
+  private static class BrowsePage {
+
+    final List<DlnaObject> children = new ArrayList<>();
+    /// Parent ID of each child
+    final List<String> parentIds = new ArrayList<>();
+    final CountDownLatch done = new CountDownLatch(1);
+
+    /// The Cling action, for cancellation
+    Future<?> action;
+
+    /// Number of objects returned by the server, including any that could not be parsed
+    long returned;
+
+    /// Total number of children reported by the server, or 0 if unknown
+    long totalMatches;
+
+    boolean failed;
+
+    /// True if the Browse failed in a way worth retrying, i.e. a timeout or no response, but not an unparseable one
+    boolean retryable;
+
+    /// True if the children were read by the streaming DIDL parser
+    boolean streamed;
+
+    /// Output of an action that returns a value instead of children
+    String value;
+
+    /**
+     * Return an empty failed page.
+     */
+    static BrowsePage failed(boolean retryable) {
+      BrowsePage page = new BrowsePage();
+      page.failed = true;
+      page.retryable = retryable;
+      return page;
+    }
+
+    /**
+     * Read the children from DIDL-Lite with the streaming parser.
+     *
+     * @return True if the children were read, false if the Cling parser should be used instead.
+     */
+    boolean stream(String xml) {
+      List<DlnaObject> objects = new ArrayList<>();
+      List<String> objectParentIds = new ArrayList<>();
+      try {
+        returned = DidlLiteParser.parse(xml, objects, objectParentIds);
+      } catch (Exception e) {
+        Log.w(TAG, "Streaming DIDL parse failed, using Cling parser: " + e);
+        return false;
+      }
+      children.addAll(objects);
+      parentIds.addAll(objectParentIds);
+      streamed = true;
+      return true;
+    }
+
+    /**
+     * Complete the page with a response, reading the children from the Cling DIDL model unless they were streamed.
+     */
+    void received(ActionInvocation invocation, DIDLContent didl) {
+      if (!streamed) {
+        for (Container container : didl.getContainers()) {
+          add(container);
+        }
+        for (Item item : didl.getItems()) {
+          add(item);
+        }
+        returned = didl.getContainers().size() + didl.getItems().size();
+      }
+      if (invocation.getOutput("TotalMatches") != null) {
+        totalMatches = ((UnsignedIntegerFourBytes) invocation.getOutput("TotalMatches").getValue()).getValue();
+      }
+      done.countDown();
+    }
+
+    private void add(DIDLObject item) {
+      DlnaObject object = parseDidlItem(item);
+      if (object != null) {
+        children.add(object);
+        parentIds.add(item.getParentID());
+      }
+    }
+
+    /**
+     * Complete the page with a failure.
+     *
+     * @param invocation The failed invocation.
+     * @param operation  The response, or null if there was none or it couldn't be parsed.
+     */
+    void fail(ActionInvocation invocation, @Nullable UpnpResponse operation) {
+      failed = true;
+      // no response means the server or network failed, rather than the request,
+      // but a response that can't be parsed would be the same on every attempt
+      retryable = operation == null && !isParseFailure(invocation.getFailure());
+      done.countDown();
+    }
+
+    /**
+     * Return true if an action failed because Cling couldn't parse the DIDL-Lite in its response.
+     */
+    private static boolean isParseFailure(@Nullable ActionException failure) {
+      return failure != null && failure.getMessage() != null && failure.getMessage().startsWith(DIDL_PARSE_FAILURE);
+    }
+
+    /**
+     * Cancel the Cling action if it is still running.
+     */
+    void cancel() {
+      if (action != null) {
+        action.cancel(true);
+      }
+    }
+
+    /**
+     * Return true if more pages should be requested after this one.
+     *
+     * @param next      Index of the first child of the next page.
+     * @param requested Number of children requested for this page.
+     */
+    boolean hasMore(long next, long requested) {
+      if (failed || returned == 0) {
+        return false;
+      }
+      // TotalMatches may be 0 when the server does not know it, then page until a short page
+      return totalMatches > 0 ? next < totalMatches : returned >= requested;
+    }
+  }
+
+  /**
+   * A discovered device with its converted form, built once when the device is added.
+   */
+  private static final class DeviceEntry {
+
+    final Device device;
+    final DlnaObjects.UpnpDevice upnpDevice;
+    final boolean hasContentDirectory;
+
+    DeviceEntry(Device device, DlnaObjects.UpnpDevice upnpDevice, boolean hasContentDirectory) {
+      this.device = device;
+      this.upnpDevice = upnpDevice;
+      this.hasContentDirectory = hasContentDirectory;
+    }
+  }
+
+  /**
+   * Immutable view of the discovered devices. A new snapshot replaces the old one when a device is added or removed,
+   * so readers never lock or copy.
+   */
+  private static final class DeviceSnapshot {
+
+    static final DeviceSnapshot EMPTY = new DeviceSnapshot(Collections.<DeviceEntry>emptyList());
+
+    /// Devices in discovery order
+    final List<DeviceEntry> entries;
+    /// All converted devices
+    final List<DlnaObjects.UpnpDevice> allDevices;
+    /// Converted devices hosting a ContentDirectory service
+    final List<DlnaObjects.UpnpDevice> contentDirectories;
+
+    DeviceSnapshot(List<DeviceEntry> entries) {
+      List<DlnaObjects.UpnpDevice> allDevices = new ArrayList<>(entries.size());
+      List<DlnaObjects.UpnpDevice> contentDirectories = new ArrayList<>(entries.size());
+      for (DeviceEntry entry : entries) {
+        allDevices.add(entry.upnpDevice);
+        if (entry.hasContentDirectory) {
+          contentDirectories.add(entry.upnpDevice);
+        }
+      }
+      this.entries = Collections.unmodifiableList(entries);
+      this.allDevices = Collections.unmodifiableList(allDevices);
+      this.contentDirectories = Collections.unmodifiableList(contentDirectories);
+    }
+
+    /**
+     * Return a snapshot with a device added, replacing any earlier entry for the same device.
+     */
+    DeviceSnapshot plus(DeviceEntry added) {
+      List<DeviceEntry> entries = new ArrayList<>(this.entries.size() + 1);
+      for (DeviceEntry entry : this.entries) {
+        if (!entry.device.equals(added.device)) {
+          entries.add(entry);
+        }
+      }
+      entries.add(added);
+      return new DeviceSnapshot(entries);
+    }
+
+    /**
+     * Return a snapshot without a device, or this snapshot if the device isn't present.
+     */
+    DeviceSnapshot minus(Device removed) {
+      List<DeviceEntry> entries = new ArrayList<>(this.entries.size());
+      for (DeviceEntry entry : this.entries) {
+        if (!entry.device.equals(removed)) {
+          entries.add(entry);
+        }
+      }
+      return entries.size() == this.entries.size() ? this : new DeviceSnapshot(entries);
+    }
+  }
+
   private ObserverSet<DlnaServiceObserver> serviceObservers = new ObserverSet<>(DlnaServiceObserver.class);
-  private ContentObserver deviceObserver;
+  private final Set<ContentObserver> deviceObservers = new CopyOnWriteArraySet<>();
+  private final AtomicBoolean deviceChangePending = new AtomicBoolean();
+
+  /**
+   * Notifies device observers once for all the device changes since it was posted.
+   */
+  private final Runnable deviceChangeNotifier = new Runnable() {
+    @Override
+    public void run() {
+      deviceChangePending.set(false);
+      for (ContentObserver observer : deviceObservers) {
+        observer.dispatchChange(false, null);
+      }
+    }
+  };
 
   /**
    * Listener for the service connection.
@@ -107,7 +517,16 @@ public class ClingDlnaHelper extends BaseDlnaHelper {
   };
 
   private AndroidUpnpService upnpService;
-  private List<Device> deviceList = new ArrayList<>();
+  private final AtomicReference<DeviceSnapshot> devices = new AtomicReference<>(DeviceSnapshot.EMPTY);
+  private volatile int browsePageSize = DEFAULT_BROWSE_PAGE_SIZE;
+  private volatile boolean streamingParser = true;
+  /// Search capabilities of each server, empty if the server can't search
+  private final Map<String, String> searchCapabilities = new ConcurrentHashMap<>();
+  private final ExecutorService browseExecutor = Executors.newFixedThreadPool(BROWSE_THREADS);
+  /// Time each parent was last browsed after a search, by UDN & parent ID
+  private final Map<String, Long> refreshTimes = new ConcurrentHashMap<>();
+  /// Children received so far by browses fetching later pages in the background, by UDN & parent ID
+  private final Map<String, List<DlnaObject>> partialChildren = new ConcurrentHashMap<>();
 
   public ClingDlnaHelper(Context context) {
     super(context);
@@ -126,6 +545,28 @@ public class ClingDlnaHelper extends BaseDlnaHelper {
     );
   }
 
+  /**
+   * Set the number of objects requested by each Browse.
+   *
+   * @param pageSize Page size, at least 1.
+   */
+  public void setBrowsePageSize(int pageSize) {
+    if (pageSize <= 0) {
+      throw new IllegalArgumentException("Page size must be positive.");
+    }
+    browsePageSize = pageSize;
+  }
+
+  /**
+   * Choose how Browse results are parsed. The streaming parser reads DIDL-Lite straight into DLNA objects,
+   * instead of building Cling's DIDL model and copying it. If streaming fails, the Cling parser is used.
+   *
+   * @param streamingParser True to use the streaming parser, false to always use the Cling parser.
+   */
+  public void setStreamingParser(boolean streamingParser) {
+    this.streamingParser = streamingParser;
+  }
+
   @Override
   public boolean isDlnaServiceStarted() {
     return upnpService != null;
@@ -138,39 +579,48 @@ public class ClingDlnaHelper extends BaseDlnaHelper {
 
   @Override
   public void unregisterContentObserver(ContentObserver contentObserver) {
-
+    deviceObservers.remove(contentObserver);
   }
 
+  /**
+   * {@inheritDoc}
+   * <p/>
+   * Returns an unmodifiable list from the current device snapshot. The observer stays registered until
+   * {@link #unregisterContentObserver(ContentObserver)} is called, and changes arriving together are reported once.
+   */
   @NonNull
   @Override
   public List<DlnaObjects.UpnpDevice> getDeviceList(@Nullable ContentObserver observer, boolean showAllDevices) {
-    List<DlnaObjects.UpnpDevice> devices = new ArrayList<>();
-    deviceObserver = observer;
-    synchronized (deviceList) {
-      for (Device device : deviceList) {
-        if (showAllDevices || device.findService(new UDAServiceType("ContentDirectory")) != null) {
-          DlnaObjects.UpnpDevice upnpDevice = new DlnaObjects.UpnpDevice();
-          upnpDevice.setUdn(device.getIdentity().getUdn().toString());
-          upnpDevice.setFriendlyName(device.getDetails().getFriendlyName());
-          upnpDevice.setDeviceType(device.getType().getDisplayString());
-          upnpDevice.setManufacturer(device.getDetails().getManufacturerDetails().getManufacturer());
-          upnpDevice.setModelName(device.getDetails().getModelDetails().getModelName());
-          upnpDevice.setModelNumber(device.getDetails().getModelDetails().getModelNumber());
-          Icon icon = findBestIcon(device.getIcons());
-          RemoteDeviceIdentity identity = (RemoteDeviceIdentity) device.getIdentity();
-          if (icon != null && identity.getDescriptorURL() != null) {
-            try {
-              URI iconUri = identity.getDescriptorURL().toURI().resolve(icon.getUri());
-              upnpDevice.setIcon(iconUri.toString());
-            } catch (URISyntaxException e) {
-              e.printStackTrace();
-            }
-          }
-          devices.add(upnpDevice);
-        }
+    if (observer != null) {
+      deviceObservers.add(observer);
+    }
+    DeviceSnapshot snapshot = devices.get();
+    return showAllDevices ? snapshot.allDevices : snapshot.contentDirectories;
+  }
+
+  /**
+   * Convert a device for the device list, resolving its best icon.
+   */
+  private DeviceEntry createDeviceEntry(Device device) {
+    DlnaObjects.UpnpDevice upnpDevice = new DlnaObjects.UpnpDevice();
+    upnpDevice.setUdn(device.getIdentity().getUdn().toString());
+    upnpDevice.setFriendlyName(device.getDetails().getFriendlyName());
+    upnpDevice.setDeviceType(device.getType().getDisplayString());
+    upnpDevice.setManufacturer(device.getDetails().getManufacturerDetails().getManufacturer());
+    upnpDevice.setModelName(device.getDetails().getModelDetails().getModelName());
+    upnpDevice.setModelNumber(device.getDetails().getModelDetails().getModelNumber());
+    Icon icon = findBestIcon(device.getIcons());
+    RemoteDeviceIdentity identity = (RemoteDeviceIdentity) device.getIdentity();
+    if (icon != null && identity.getDescriptorURL() != null) {
+      try {
+        URI iconUri = identity.getDescriptorURL().toURI().resolve(icon.getUri());
+        upnpDevice.setIcon(iconUri.toString());
+      } catch (URISyntaxException e) {
+        e.printStackTrace();
       }
     }
-    return devices;
+    boolean hasContentDirectory = device.findService(new UDAServiceType("ContentDirectory")) != null;
+    return new DeviceEntry(device, upnpDevice, hasContentDirectory);
   }
 
   Icon findBestIcon(Icon[] icons) {
@@ -194,12 +644,30 @@ public class ClingDlnaHelper extends BaseDlnaHelper {
     return bestIcon;
   }
 
+  /**
+   * {@inheritDoc}
+   * <p/>
+   * Children are browsed in pages, and written to the cache once all pages have arrived. If a content
+   * observer is provided, the first page is returned immediately and later pages are fetched in the
+   * background, notifying the observer after each page; until the last page, cached reads return the
+   * children received so far. Otherwise all pages are returned. If a later page fails, the children
+   * received are returned but not cached.
+   * <p/>
+   * Concurrent requests for all children of the same parent share one Browse. A request with an
+   * observer shares a complete Browse already in progress, but its own first page is not shared.
+   */
   @NonNull
   @Override
-  public <T extends DlnaObject> List<T> getChildren(String udn, String parentId, final Class<T> childClass, @Nullable ContentObserver contentObserver, boolean useCache) {
+  public <T extends DlnaObject> List<T> getChildren(final String udn, final String parentId, Class<T> childClass, @Nullable final ContentObserver contentObserver, boolean useCache) {
 
     // check for cached data
     if (useCache == true) {
+      List<DlnaObject> partial = partialChildren.get(udn + "/" + parentId);
+      if (partial != null) {
+        synchronized (partial) {
+          return (List<T>) new ArrayList<>(partial);
+        }
+      }
       List<DlnaObject> cachedChildren = DlnaHelper.getCache(getContext()).getChildren(udn, parentId);
       if (cachedChildren != null) {
         return (List<T>) cachedChildren;
@@ -207,42 +675,184 @@ public class ClingDlnaHelper extends BaseDlnaHelper {
     }
 
 
+    return (List<T>) coalesce(udn + "/" + parentId, contentObserver == null, new ChildrenRequest() {
+      @NonNull
+      @Override
+      public List<DlnaObject> getChildren() {
+        return browseChildren(udn, parentId, contentObserver);
+      }
+    });
+  }
+
+  /**
+   * Browse the children of a parent as described in {@link #getChildren(String, String, Class, ContentObserver, boolean)}.
+   */
+  @NonNull
+  private List<DlnaObject> browseChildren(final String udn, final String parentId, @Nullable final ContentObserver contentObserver) {
     Log.d(TAG, "Get children: udn =  " + udn + ", parentId = " + parentId + ".");
-    final List<DlnaObject> children = new ArrayList<>();
-    Device device = upnpService.getRegistry().getDevice(UDN.valueOf(udn), true);
-    if (device == null) {
+    final Service service = getContentDirectory(udn);
+    if (service == null) {
       // device not found
-      return (List<T>) children;
+      return new ArrayList<>();
+    }
+    final int pageSize = browsePageSize;
+    final BrowsePage firstPage = browse(service, parentId, 0, pageSize);
+    final List<DlnaObject> children = new ArrayList<>(firstPage.children);
+    if (!firstPage.hasMore(firstPage.returned, pageSize)) {
+      if (children.size() > 0) {
+        DlnaHelper.getCache(getContext()).add(udn, parentId, new ArrayList<>(children));
+      }
+      return children;
+    }
+    if (contentObserver != null) {
+      // deliver the first page now, the observer is notified as the rest arrive
+      final String key = udn + "/" + parentId;
+      final List<DlnaObject> partial = new ArrayList<>(children);
+      partialChildren.put(key, partial);
+      browseExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            browseRemaining(service, udn, parentId, partial, firstPage, pageSize, contentObserver);
+          } finally {
+            partialChildren.remove(key, partial);
+          }
+        }
+      });
+    } else {
+      browseRemaining(service, udn, parentId, children, firstPage, pageSize, null);
+    }
+    return children;
+  }
+
+  /**
+   * Browse the pages after the first, adding them to a list of children, and write the list to the cache
+   * if every page arrived.
+   *
+   * @param children  Children received so far. Appended to while locked, so it can be copied by other threads.
+   * @param firstPage The first page.
+   * @param pageSize  Number of children requested per page.
+   * @param observer  Observer to notify after each page, or null.
+   */
+  private void browseRemaining(Service service, String udn, String parentId, List<DlnaObject> children, BrowsePage firstPage,
+                               int pageSize, @Nullable ContentObserver observer) {
+    BrowsePage page = firstPage;
+    long next = firstPage.returned;
+    while (page.hasMore(next, pageSize)) {
+      page = browse(service, parentId, next, pageSize);
+      if (page.failed) {
+        // a partial list must not be cached as the parent's children
+        Log.e(TAG, String.format("Browse of %s stopped at %d children, not cached.", parentId, next));
+        return;
+      }
+      synchronized (children) {
+        children.addAll(page.children);
+      }
+      next += page.returned;
+      Log.d(TAG, String.format("Browse of %s: %d of %d children.", parentId, next, page.totalMatches));
+      if (observer != null) {
+        observer.dispatchChange(false, null);
+      }
+    }
+    // only this thread appends, so the list can be copied without locking
+    DlnaHelper.getCache(getContext()).add(udn, parentId, new ArrayList<>(children));
+  }
+
+  /**
+   * Starts one attempt at a ContentDirectory action.
+   */
+  private interface PageAction {
+
+    BrowsePage start();
+  }
+
+  /**
+   * Browse one page of the direct children of a parent and wait for the result.
+   *
+   * @param start Index of the first child.
+   * @param count Number of children to request.
+   * @return The page. On failure, the page is empty and marked failed.
+   */
+  private BrowsePage browse(final Service service, final String parentId, final long start, final long count) {
+    return execute(service, "Browse of " + parentId, new PageAction() {
+      @Override
+      public BrowsePage start() {
+        return startBrowse(service, parentId, start, count);
+      }
+    });
+  }
+
+  /**
+   * Run an action and wait for the result.
+   * Each attempt waits for a place within the server's concurrent browse limit.
+   * An action that times out or gets no response is retried with backoff. If the calling thread is
+   * interrupted, e.g. by cancelling its AsyncTask, the action is cancelled and not retried.
+   *
+   * @param service Service the action is sent to.
+   * @param name    Description of the action for logging.
+   * @param action  Action to run.
+   * @return The page. On failure, the page is empty and marked failed.
+   */
+  private BrowsePage execute(Service service, String name, PageAction action) {
+    String udn = service.getDevice().getIdentity().getUdn().toString();
+    long delay = BROWSE_RETRY_DELAY_MS;
+    for (int attempt = 1; ; attempt++) {
+      BrowsePage page = null;
+      try {
+        acquireBrowse(udn);
+        try {
+          page = action.start();
+          if (!page.done.await(BROWSE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            Log.w(TAG, String.format("%s timed out after %dms.", name, BROWSE_TIMEOUT_MS));
+            page.cancel();
+            // a late response must not change the returned page
+            page = BrowsePage.failed(true);
+          }
+        } finally {
+          releaseBrowse(udn);
+        }
+        if (!page.failed || !page.retryable || attempt == BROWSE_ATTEMPTS) {
+          return page;
+        }
+        Log.w(TAG, String.format("Retrying %s in %dms.", name, delay));
+        Thread.sleep(delay);
+        delay *= 2;
+      } catch (InterruptedException e) {
+        Log.w(TAG, name + " cancelled.");
+        if (page != null) {
+          page.cancel();
+        }
+        Thread.currentThread().interrupt();
+        return BrowsePage.failed(false);
+      }
     }
-    Service service = device.findService(new UDAServiceType("ContentDirectory"));
-    Browse browse = new Browse(service, parentId, BrowseFlag.DIRECT_CHILDREN) {
+  }
+
+  /**
+   * Start a Browse for one page of the direct children of a parent.
+   *
+   * @return The page, which is complete when its latch is released.
+   */
+  private BrowsePage startBrowse(Service service, String parentId, long start, long count) {
+    final BrowsePage page = new BrowsePage();
+    Browse browse = new Browse(service, parentId, BrowseFlag.DIRECT_CHILDREN, Browse.CAPS_WILDCARD, start, count) {
 
       @Override
       public void failure(ActionInvocation invocation, UpnpResponse operation, String defaultMsg) {
         Log.e(TAG, "Browse failure: " + defaultMsg);
-        synchronized (children) {
-          children.notifyAll();
-        }
+        page.fail(invocation, operation);
+      }
+
+      @Override
+      public boolean receivedRaw(ActionInvocation actionInvocation, BrowseResult browseResult) {
+        // when streamed, skip Cling's DIDL model and received() gets empty content
+        return !(streamingParser && page.stream(browseResult.getResult()));
       }
 
       @Override
       public void received(ActionInvocation actionInvocation, DIDLContent didl) {
         Log.d(TAG, "Browse received.");
-        synchronized (children) {
-          for (Container item : didl.getContainers()) {
-            DlnaObject object = parseDidlItem(item);
-            if (object != null) {
-              children.add(object);
-            }
-          }
-          for (Item item : didl.getItems()) {
-            DlnaObject object = parseDidlItem(item);
-            if (object != null) {
-              children.add(object);
-            }
-          }
-          children.notifyAll();
-        }
+        page.received(actionInvocation, didl);
       }
 
       @Override
@@ -250,31 +860,194 @@ public class ClingDlnaHelper extends BaseDlnaHelper {
         Log.d(TAG, "Browse status: " + status.getDefaultMessage());
       }
     };
-    upnpService.getControlPoint().execute(browse);
-    synchronized (children) {
-      try {
-        children.wait();
-      } catch (InterruptedException e) {
-        Log.e(TAG, e.getMessage());
+    page.action = upnpService.getControlPoint().execute(browse);
+    return page;
+  }
+
+  /**
+   * Search one page of the objects below a parent and wait for the result.
+   *
+   * @param criteria UPnP search criteria.
+   * @param start    Index of the first result.
+   * @param count    Number of results to request.
+   * @return The page. On failure, the page is empty and marked failed.
+   */
+  private BrowsePage search(final Service service, final String parentId, final String criteria, final long start, final long count) {
+    return execute(service, "Search of " + parentId, new PageAction() {
+      @Override
+      public BrowsePage start() {
+        return startSearch(service, parentId, criteria, start, count);
+      }
+    });
+  }
+
+  /**
+   * Start a Search for one page of the objects below a parent.
+   *
+   * @return The page, which is complete when its latch is released.
+   */
+  private BrowsePage startSearch(Service service, String parentId, String criteria, long start, long count) {
+    final BrowsePage page = new BrowsePage();
+    Search search = new Search(service, parentId, criteria, Search.CAPS_WILDCARD, start, count) {
+
+      @Override
+      public void failure(ActionInvocation invocation, UpnpResponse operation, String defaultMsg) {
+        Log.e(TAG, "Search failure: " + defaultMsg);
+        page.fail(invocation, operation);
+      }
+
+      @Override
+      public boolean receivedRaw(ActionInvocation actionInvocation, SearchResult searchResult) {
+        return !(streamingParser && page.stream(searchResult.getResult()));
+      }
+
+      @Override
+      public void received(ActionInvocation actionInvocation, DIDLContent didl) {
+        Log.d(TAG, "Search received.");
+        page.received(actionInvocation, didl);
       }
+
+      @Override
+      public void updateStatus(Status status) {
+        Log.d(TAG, "Search status: " + status.getDefaultMessage());
+      }
+    };
+    page.action = upnpService.getControlPoint().execute(search);
+    return page;
+  }
+
+  /**
+   * Return the ContentDirectory service of a server.
+   *
+   * @return The service, or null if the server isn't known or has no ContentDirectory.
+   */
+  @Nullable
+  private Service getContentDirectory(String udn) {
+    Device device = upnpService.getRegistry().getDevice(UDN.valueOf(udn), true);
+    return device != null ? device.findService(new UDAServiceType("ContentDirectory")) : null;
+  }
+
+  /**
+   * Return search criteria matching titles that contain the search text, if the server supports it.
+   *
+   * @return Search criteria, or null if the server can't search titles.
+   */
+  @Nullable
+  private String getSearchCriteria(String udn, Service service, String searchText) {
+    String capabilities = getSearchCapabilities(udn, service);
+    if (capabilities == null) {
+      return null;
     }
-    if (children.size() > 0) {
-      DlnaHelper.getCache(getContext()).add(udn, parentId, children);
+    boolean titles = false;
+    for (String capability : capabilities.split(",")) {
+      if (capability.trim().equals("*") || capability.trim().equals("dc:title")) {
+        titles = true;
+      }
     }
-    return (List<T>) children;
+    if (!titles) {
+      return null;
+    }
+    // quotes and backslashes in a string value are escaped with a backslash
+    return "dc:title contains \"" + searchText.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+  }
+
+  /**
+   * Return the search capabilities of a server, asking the server the first time with the same
+   * timeout & retries as a Browse.
+   *
+   * @return Comma separated property names, an empty string if the server can't search,
+   * or null if the server could not be asked.
+   */
+  @Nullable
+  private String getSearchCapabilities(String udn, Service service) {
+    String capabilities = searchCapabilities.get(udn);
+    if (capabilities != null) {
+      return capabilities;
+    }
+    final Action action = service.getAction("GetSearchCapabilities");
+    if (action == null || service.getAction("Search") == null) {
+      capabilities = "";
+    } else {
+      BrowsePage result = execute(service, "GetSearchCapabilities of " + udn, new PageAction() {
+        @Override
+        public BrowsePage start() {
+          return startGetSearchCapabilities(action);
+        }
+      });
+      if (result.failed) {
+        Log.w(TAG, "Can't get search capabilities of " + udn + ".");
+        return null;
+      }
+      capabilities = result.value != null ? result.value : "";
+    }
+    Log.d(TAG, "Search capabilities of " + udn + ": '" + capabilities + "'.");
+    searchCapabilities.put(udn, capabilities);
+    return capabilities;
+  }
+
+  /**
+   * Start a GetSearchCapabilities action.
+   *
+   * @return A page holding the capabilities as its value, which is complete when its latch is released.
+   */
+  private BrowsePage startGetSearchCapabilities(Action action) {
+    final BrowsePage page = new BrowsePage();
+    ActionCallback callback = new ActionCallback(new ActionInvocation(action)) {
+
+      @Override
+      public void success(ActionInvocation invocation) {
+        ActionArgumentValue value = invocation.getOutput("SearchCaps");
+        page.value = value != null && value.getValue() != null ? value.getValue().toString() : null;
+        page.done.countDown();
+      }
+
+      @Override
+      public void failure(ActionInvocation invocation, UpnpResponse operation, String defaultMsg) {
+        Log.e(TAG, "GetSearchCapabilities failure: " + defaultMsg);
+        page.fail(invocation, operation);
+      }
+    };
+    page.action = upnpService.getControlPoint().execute(callback);
+    return page;
+  }
+
+  /**
+   * Browse a parent in the background, caching its full list of children,
+   * unless it was already browsed after a search in the last {@link #SEARCH_REFRESH_INTERVAL_MS}.
+   *
+   * @return True if a browse was started.
+   */
+  private boolean refreshParent(final String udn, final String parentId) {
+    String key = udn + "/" + parentId;
+    long now = System.currentTimeMillis();
+    Long last = refreshTimes.get(key);
+    if (last != null && now - last < SEARCH_REFRESH_INTERVAL_MS) {
+      return false;
+    }
+    // only one search claims each refresh
+    if (last == null ? refreshTimes.putIfAbsent(key, now) != null : !refreshTimes.replace(key, last, now)) {
+      return false;
+    }
+    browseExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        getChildren(udn, parentId, DlnaObject.class, null, false);
+      }
+    });
+    return true;
   }
 
   @NonNull
   @Override
   public <T extends DlnaObject> List<T> search(String udn, String parentId, String searchText, final Class<T> childClass) {
-    Log.d(TAG, "Search: udn =  " + udn + ", parentId = " + parentId + ", query = " + searchText + ".");
-    List<T> results = searchCache(udn, parentId, searchText, childClass);
-    Log.d(TAG, String.format("%d items found.",results.size()));
-    return results;
-  }
-
-  private <T extends DlnaObject> List<T> searchCache(String udn, String parentId, String searchText, final Class<T> childClass) {
-    final List<DlnaObject> results = DlnaHelper.getCache(getContext()).search(udn, parentId, searchText);
+    final List<DlnaObject> results = new ArrayList<>();
+    search(udn, parentId, searchText, childClass, new DlnaCache.PageConsumer<T>() {
+      @Override
+      public boolean onPage(@NonNull List<T> page) {
+        results.addAll(page);
+        return true;
+      }
+    });
     Collections.sort(results, new Comparator<DlnaObject>() {
       @Override
       public int compare(DlnaObject lhs, DlnaObject rhs) {
@@ -285,7 +1058,72 @@ public class ClingDlnaHelper extends BaseDlnaHelper {
     return (List<T>) results;
   }
 
-  private DlnaObject parseDidlItem(DIDLObject object) {
+  /**
+   * {@inheritDoc}
+   * <p/>
+   * Cached results are delivered first. If the server can search titles, a ContentDirectory Search follows and
+   * each page of results not already delivered is passed on as it arrives. A few parents of those results are
+   * browsed in the background, so the cache holds their full children for later searches. Each parent is
+   * browsed at most once an hour this way, so repeated searches don't add load on the server.
+   */
+  @Override
+  public <T extends DlnaObject> int search(String udn, String parentId, String searchText, Class<T> childClass,
+                                           @NonNull DlnaCache.PageConsumer<T> consumer) {
+    Log.d(TAG, "Search: udn =  " + udn + ", parentId = " + parentId + ", query = " + searchText + ".");
+    List<DlnaObject> cached = DlnaHelper.getCache(getContext()).search(udn, parentId, searchText);
+    Set<String> ids = new HashSet<>();
+    for (DlnaObject object : cached) {
+      ids.add(object.getId());
+    }
+    int count = cached.size();
+    if (count > 0 && !consumer.onPage((List<T>) cached)) {
+      return count;
+    }
+    Service service = isDlnaServiceStarted() ? getContentDirectory(udn) : null;
+    String criteria = service != null ? getSearchCriteria(udn, service, searchText) : null;
+    if (criteria == null) {
+      Log.d(TAG, String.format("%d items found in cache.", count));
+      return count;
+    }
+    Set<String> refreshCandidates = new HashSet<>();
+    int refreshCount = 0;
+    int pageSize = browsePageSize;
+    long next = 0;
+    BrowsePage page;
+    do {
+      page = search(service, parentId, criteria, next, pageSize);
+      if (page.failed) {
+        Log.e(TAG, String.format("Search of %s stopped at %d results.", parentId, next));
+        break;
+      }
+      List<DlnaObject> found = new ArrayList<>();
+      for (int i = 0; i < page.children.size(); i++) {
+        DlnaObject object = page.children.get(i);
+        if (ids.add(object.getId())) {
+          found.add(object);
+          String foundParentId = page.parentIds.get(i);
+          if (foundParentId != null && refreshCount < MAX_SEARCH_REFRESHES && refreshCandidates.add(foundParentId)
+              && refreshParent(udn, foundParentId)) {
+            refreshCount++;
+          }
+        }
+      }
+      next += page.returned;
+      count += found.size();
+      if (found.size() > 0 && !consumer.onPage((List<T>) found)) {
+        break;
+      }
+    } while (page.hasMore(next, pageSize));
+    Log.d(TAG, String.format("%d items found.", count));
+    return count;
+  }
+
+  /**
+   * Convert a DIDL object to a DLNA object of the matching class.
+   *
+   * @return The object, or null if its class can't be created.
+   */
+  static DlnaObject parseDidlItem(DIDLObject object) {
     String clazz = object.getClazz().getValue();
     try {
       DlnaObject dlnaObject = DlnaObjects.DlnaClass.newInstance(clazz);
@@ -304,23 +1142,7 @@ public class ClingDlnaHelper extends BaseDlnaHelper {
         DlnaObjects.VideoItem dest = (DlnaObjects.VideoItem) dlnaObject;
         dest.setDescription(source.getDescription());
         dest.setLongDescription(source.getLongDescription());
-        for (DIDLObject.Property property : source.getProperties()) {
-          if (property.getDescriptorName().equals("channelID")) {
-            dest.setChannelId(property.getValue().toString());
-          } else if (property.getDescriptorName().equals("rating")) {
-            dest.addRating(property.getValue().toString());
-          } else if (property.getDescriptorName().equals("language")) {
-            dest.setLanguage(property.getValue().toString());
-          } else if (property.getDescriptorName().equals("genre")) {
-            dest.setGenre(property.getValue().toString());
-          } else if (property.getDescriptorName().equals("programTitle")) {
-            dest.setProgramTitle(property.getValue().toString());
-          } else if (property.getDescriptorName().equals("icon")) {
-            dest.setIcon(property.getValue().toString());
-          } else if (property.getDescriptorName().equals("actor")) {
-            dest.addActor(property.getValue().toString());
-          }
-        }
+        setProperties(source, dest, VIDEO_ITEM_SETTERS);
       }
       if (dlnaObject instanceof DlnaObjects.VideoBroadcast) {
         VideoBroadcast source = (VideoBroadcast) object;
@@ -334,37 +1156,7 @@ public class ClingDlnaHelper extends BaseDlnaHelper {
       if (dlnaObject instanceof VideoProgram) {
         Item source = (Item) object;
         VideoProgram dest = (VideoProgram) dlnaObject;
-        for (DIDLObject.Property property : source.getProperties()) {
-          if (property.getDescriptorName().equals("icon")) {
-            dest.setIcon(property.getValue().toString());
-          } else if (property.getDescriptorName().equals("rating")) {
-            dest.setRating(property.getValue().toString());
-          } else if (property.getDescriptorName().equals("genre")) {
-            dest.setGenre(property.getValue().toString());
-          } else if (property.getDescriptorName().equals("scheduledStartTime")) {
-            dest.setScheduledStartTime(property.getValue().toString());
-          } else if (property.getDescriptorName().equals("scheduledEndTime")) {
-            dest.setScheduledEndTime(property.getValue().toString());
-          } else if (property.getDescriptorName().equals("scheduledDurationTime")) {
-            dest.setScheduleDurationTime(property.getValue().toString());
-          } else if (property.getDescriptorName().equals("longDescription")) {
-            dest.setLongDescription(property.getValue().toString());
-          } else if (property.getDescriptorName().equals("programTitle")) {
-            dest.setProgramTitle(property.getValue().toString());
-          } else if (property.getDescriptorName().equals("programID")) {
-            dest.setProgramId(property.getValue().toString());
-          } else if (property.getDescriptorName().equals("seriesID")) {
-            dest.setSeriesId(property.getValue().toString());
-          } else if (property.getDescriptorName().equals("episodeNumber")) {
-            dest.setEpisodeNumber(property.getValue().toString());
-          } else if (property.getDescriptorName().equals("episodeSeason")) {
-            dest.setEpisodeSeason(property.getValue().toString());
-          } else if (property.getDescriptorName().equals("episodeType")) {
-            dest.setEpisodeType(property.getValue().toString());
-          } else if (property.getDescriptorName().equals("channelID")) {
-            dest.setChannelId(property.getValue().toString());
-          }
-        }
+        setProperties(source, dest, VIDEO_PROGRAM_SETTERS);
         dest.setChannelId(source.getParentID().split("/")[2]);
       }
       return dlnaObject;
@@ -376,23 +1168,47 @@ public class ClingDlnaHelper extends BaseDlnaHelper {
     return null;
   }
 
+  /**
+   * Copy the values of DIDL properties with a setter to a DLNA object. Other properties are skipped without reading their values.
+   */
+  private static <T extends DlnaObject> void setProperties(DIDLObject source, T dest, Map<String, PropertySetter<T>> setters) {
+    for (DIDLObject.Property property : source.getProperties()) {
+      PropertySetter<T> setter = setters.get(property.getDescriptorName());
+      if (setter != null && property.getValue() != null) {
+        setter.set(dest, property.getValue().toString());
+      }
+    }
+  }
+
   private void addDevice(Device device) {
     Log.d(TAG, "Device added: " + device.getDisplayString());
-    synchronized (deviceList) {
-      deviceList.add(device);
-    }
-    if (deviceObserver != null) {
-      deviceObserver.dispatchChange(false, null);
-    }
+    DeviceEntry entry = createDeviceEntry(device);
+    DeviceSnapshot snapshot;
+    do {
+      snapshot = devices.get();
+    } while (!devices.compareAndSet(snapshot, snapshot.plus(entry)));
+    notifyDeviceObservers();
   }
 
   private void removeDevice(Device device) {
     Log.d(TAG, "Device removed: " + device.getDisplayString());
-    synchronized (deviceList) {
-      deviceList.remove(device);
+    DeviceSnapshot snapshot;
+    DeviceSnapshot updated;
+    do {
+      snapshot = devices.get();
+      updated = snapshot.minus(device);
+    } while (updated != snapshot && !devices.compareAndSet(snapshot, updated));
+    if (updated != snapshot) {
+      notifyDeviceObservers();
     }
-    if (deviceObserver != null) {
-      deviceObserver.dispatchChange(false, null);
+  }
+
+  /**
+   * Schedule a notification to device observers, unless one is already waiting.
+   */
+  private void notifyDeviceObservers() {
+    if (deviceChangePending.compareAndSet(false, true)) {
+      ThreadUtils.postOnUiThread(deviceChangeNotifier, DEVICE_NOTIFY_DELAY_MS);
     }
   }
 }
@@ -0,0 +1,232 @@
+package com.sony.sel.tvapp.util;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Xml;
+
+import com.sony.sel.tvapp.util.DlnaObjects.DlnaObject;
+import com.sony.sel.tvapp.util.DlnaObjects.VideoProgram;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pull parser that reads DIDL-Lite XML straight into DLNA objects.
+ * <p/>
+ * Produces the same objects as converting Cling's DIDL model with {@link ClingDlnaHelper#parseDidlItem},
+ * without building the model first. Only top-level containers & items are read, as with the Cling path.
+ */
+final class DidlLiteParser {
+
+  private static final String DIDL_NAMESPACE = "urn:schemas-upnp-org:metadata-1-0/DIDL-Lite/";
+  private static final String DC_NAMESPACE = "http://purl.org/dc/elements/1.1/";
+  private static final String UPNP_NAMESPACE = "urn:schemas-upnp-org:metadata-1-0/upnp/";
+
+  /**
+   * Fields of one container or item, collected before its class is known.
+   */
+  private static class Element {
+
+    String id;
+    String parentId;
+    String title;
+    String upnpClass;
+    boolean hasRes;
+    String res;
+    String protocolInfo;
+    String description;
+    String longDescription;
+    String icon;
+    String channelNr;
+
+    /// Property names & values in document order
+    final List<String[]> properties = new ArrayList<>();
+  }
+
+  private DidlLiteParser() {
+  }
+
+  /**
+   * Parse DIDL-Lite XML into DLNA objects.
+   *
+   * @param xml     DIDL-Lite XML.
+   * @param objects List to add the parsed objects to.
+   * @return Number of containers & items in the XML, including any that could not be converted.
+   * @throws XmlPullParserException if the XML is malformed.
+   * @throws IOException            if the XML can't be read.
+   * @throws IllegalStateException  if an object can't be converted as the Cling path would.
+   */
+  static int parse(@NonNull String xml, @NonNull List<DlnaObject> objects) throws XmlPullParserException, IOException {
+    return parse(xml, objects, null);
+  }
+
+  /**
+   * Parse DIDL-Lite XML into DLNA objects, also collecting their parent IDs.
+   *
+   * @param xml       DIDL-Lite XML.
+   * @param objects   List to add the parsed objects to.
+   * @param parentIds List to add the parent ID of each parsed object to, or null.
+   * @return Number of containers & items in the XML, including any that could not be converted.
+   * @throws XmlPullParserException if the XML is malformed.
+   * @throws IOException            if the XML can't be read.
+   * @throws IllegalStateException  if an object can't be converted as the Cling path would.
+   */
+  static int parse(@NonNull String xml, @NonNull List<DlnaObject> objects, @Nullable List<String> parentIds)
+      throws XmlPullParserException, IOException {
+    if (xml.trim().isEmpty()) {
+      return 0;
+    }
+    XmlPullParser parser = Xml.newPullParser();
+    parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+    parser.setInput(new StringReader(xml));
+    int count = 0;
+    for (int event = parser.next(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+      if (event != XmlPullParser.START_TAG) {
+        continue;
+      }
+      if (parser.getDepth() == 2 && DIDL_NAMESPACE.equals(parser.getNamespace())
+          && ("item".equals(parser.getName()) || "container".equals(parser.getName()))) {
+        count++;
+        Element element = readElement(parser);
+        DlnaObject object = build(element);
+        if (object != null) {
+          objects.add(object);
+          if (parentIds != null) {
+            parentIds.add(element.parentId);
+          }
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Read a container or item, leaving the parser on its end tag.
+   */
+  private static Element readElement(XmlPullParser parser) throws XmlPullParserException, IOException {
+    Element element = new Element();
+    element.id = parser.getAttributeValue(null, "id");
+    element.parentId = parser.getAttributeValue(null, "parentID");
+    int depth = parser.getDepth();
+    for (int event = parser.next(); !(event == XmlPullParser.END_TAG && parser.getDepth() == depth); event = parser.next()) {
+      if (event != XmlPullParser.START_TAG || parser.getDepth() != depth + 1) {
+        // nested objects are skipped along with their properties
+        continue;
+      }
+      String namespace = parser.getNamespace();
+      String name = parser.getName();
+      if (DIDL_NAMESPACE.equals(namespace)) {
+        if ("res".equals(name) && !element.hasRes) {
+          element.hasRes = true;
+          element.protocolInfo = parser.getAttributeValue(null, "protocolInfo");
+          element.res = readText(parser);
+        }
+      } else if (DC_NAMESPACE.equals(namespace)) {
+        String value = readText(parser);
+        if ("title".equals(name)) {
+          element.title = value;
+        } else if ("description".equals(name) && element.description == null) {
+          element.description = value;
+        } else if ("language".equals(name)) {
+          element.properties.add(new String[]{name, value});
+        }
+      } else if (UPNP_NAMESPACE.equals(namespace)) {
+        String value = readText(parser);
+        if ("class".equals(name)) {
+          element.upnpClass = value;
+        } else if (!"writeStatus".equals(name)) {
+          if ("longDescription".equals(name) && element.longDescription == null) {
+            element.longDescription = value;
+          } else if ("icon".equals(name) && element.icon == null) {
+            element.icon = value;
+          } else if ("channelNr".equals(name)) {
+            element.channelNr = value;
+          }
+          element.properties.add(new String[]{name, value});
+        }
+      }
+    }
+    return element;
+  }
+
+  /**
+   * Read the text of the current element, leaving the parser on its end tag.
+   */
+  private static String readText(XmlPullParser parser) throws XmlPullParserException, IOException {
+    StringBuilder text = new StringBuilder();
+    int depth = parser.getDepth();
+    for (int event = parser.next(); !(event == XmlPullParser.END_TAG && parser.getDepth() == depth); event = parser.next()) {
+      if (event == XmlPullParser.TEXT && parser.getDepth() == depth) {
+        text.append(parser.getText());
+      }
+    }
+    return text.toString();
+  }
+
+  /**
+   * Convert the fields of a container or item to a DLNA object, as {@link ClingDlnaHelper#parseDidlItem} does.
+   *
+   * @return The object, or null if its class can't be created.
+   */
+  private static DlnaObject build(Element element) {
+    if (element.upnpClass == null) {
+      throw new IllegalStateException("DIDL object " + element.id + " has no class.");
+    }
+    DlnaObject object;
+    try {
+      object = DlnaObjects.DlnaClass.newInstance(element.upnpClass);
+    } catch (IllegalAccessException e) {
+      return null;
+    } catch (InstantiationException e) {
+      return null;
+    }
+    object.setTitle(element.title);
+    object.setId(element.id);
+    object.setUpnpClass(element.upnpClass);
+    if (element.hasRes) {
+      String[] protocolInfo = element.protocolInfo != null ? element.protocolInfo.trim().split(":") : null;
+      if (protocolInfo == null || protocolInfo.length != 4) {
+        throw new IllegalStateException("Can't parse protocol info of " + element.id + ".");
+      }
+      object.setRes(element.res);
+      object.setProtocolInfo(element.protocolInfo.trim());
+      object.setResMimeType(protocolInfo[2]);
+      object.setResAdditionalInfo(protocolInfo[3]);
+    }
+    if (object instanceof DlnaObjects.VideoItem) {
+      DlnaObjects.VideoItem dest = (DlnaObjects.VideoItem) object;
+      dest.setDescription(element.description);
+      dest.setLongDescription(element.longDescription);
+      setProperties(element, dest, ClingDlnaHelper.VIDEO_ITEM_SETTERS);
+    }
+    if (object instanceof DlnaObjects.VideoBroadcast) {
+      DlnaObjects.VideoBroadcast dest = (DlnaObjects.VideoBroadcast) object;
+      if (element.icon != null) {
+        dest.setIcon(element.icon);
+      }
+      dest.setChannelNumber(Integer.valueOf(element.channelNr).toString());
+      dest.setCallSign(element.title.split(" ")[1]);
+    }
+    if (object instanceof VideoProgram) {
+      VideoProgram dest = (VideoProgram) object;
+      setProperties(element, dest, ClingDlnaHelper.VIDEO_PROGRAM_SETTERS);
+      dest.setChannelId(element.parentId.split("/")[2]);
+    }
+    return object;
+  }
+
+  private static <T extends DlnaObject> void setProperties(Element element, T dest, Map<String, ClingDlnaHelper.PropertySetter<T>> setters) {
+    for (String[] property : element.properties) {
+      ClingDlnaHelper.PropertySetter<T> setter = setters.get(property[0]);
+      if (setter != null) {
+        setter.set(dest, property[1]);
+      }
+    }
+  }
+}
@@ -7,6 +7,7 @@ import com.sony.sel.tvapp.util.DlnaObjects.VideoProgram;
 
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 import static com.sony.sel.tvapp.util.DlnaObjects.DlnaObject;
 
@@ -15,6 +16,22 @@ import static com.sony.sel.tvapp.util.DlnaObjects.DlnaObject;
  */
 public interface DlnaCache {
 
+  /**
+   * Receives pages of results from a streaming query.
+   *
+   * @param <T> Result object class.
+   */
+  interface PageConsumer<T> {
+
+    /**
+     * Process one page of results. The page is not referenced by the cache after this returns.
+     *
+     * @param page Results in query order, never empty.
+     * @return True to continue with the next page, false to stop the query.
+     */
+    boolean onPage(@NonNull List<T> page);
+  }
+
   @Nullable
   <T extends DlnaObject> List<T> getChildren(String udn, String parentId);
 
@@ -27,6 +44,15 @@ public interface DlnaCache {
    */
   void add(@NonNull String udn, @NonNull String parentID, @NonNull List<DlnaObject> children);
 
+  /**
+   * Add child objects for several parents to the cache in one batch, e.g. a whole EPG day.
+   * Caches backed by persistent storage should commit the batch as a single write.
+   *
+   * @param udn     Server UDN.
+   * @param parents Map of parent object ID to child objects.
+   */
+  void addAll(@NonNull String udn, @NonNull Map<String, List<DlnaObject>> parents);
+
   /**
    * Perform a generic search of the cache and return a list of found objects.
    *
@@ -39,6 +65,19 @@ public interface DlnaCache {
   @NonNull
   <T extends DlnaObject> List<T> search(@NonNull String udn, @NonNull String parentId, @NonNull String searchText);
 
+  /**
+   * Perform a generic search of the cache, delivering results a page at a time.
+   *
+   * @param udn        Server UDN.
+   * @param parentId   Parent object ID. All levels below this parent will be searched.
+   * @param searchText Text to search for in object titles.
+   * @param pageSize   Maximum number of objects per page.
+   * @param consumer   Consumer for each page of results.
+   * @param <T>        Class of search results expected.
+   * @return Number of objects delivered.
+   */
+  <T extends DlnaObject> int search(@NonNull String udn, @NonNull String parentId, @NonNull String searchText, int pageSize, @NonNull PageConsumer<T> consumer);
+
   /**
    * Perform an EPG specific search of the cache.
    *
@@ -47,10 +86,51 @@ public interface DlnaCache {
    * @param startDateTime Starting date/time to search for. (Overlapping programs will be returned.)
    * @param endDateTime   Ending date/time to search for. (Overlapping programs will be returned.)
    * @return A list of EPG programs sorted by channel and date, or empty list of none found.
+   * Programs without a channel ID can't be placed in the guide and are never returned.
    */
   @NonNull
   List<VideoProgram> searchEpg(@NonNull String udn, @Nullable List<String> channels, @NonNull Date startDateTime, @NonNull Date endDateTime);
 
+  /**
+   * Perform an EPG specific search of the cache, delivering programs a page at a time.
+   * Caches that hold results in memory build the whole list and slice it, so only SQLite-backed queries
+   * avoid holding every decoded program at once.
+   *
+   * @param udn           Server UDN.
+   * @param channels      List of channel IDs to search or null for all channels.
+   * @param startDateTime Starting date/time to search for. (Overlapping programs will be returned.)
+   * @param endDateTime   Ending date/time to search for. (Overlapping programs will be returned.)
+   * @param pageSize      Maximum number of programs per page.
+   * @param consumer      Consumer for each page of programs, sorted by channel and date.
+   * @return Number of programs delivered.
+   */
+  int searchEpg(@NonNull String udn, @Nullable List<String> channels, @NonNull Date startDateTime, @NonNull Date endDateTime, int pageSize, @NonNull PageConsumer<VideoProgram> consumer);
+
+  /**
+   * Perform an EPG specific search of the cache, returning lightweight views of the programs.
+   * Views carry the fields needed to list programs; the full program is only built when requested from a view.
+   *
+   * @param udn           Server UDN.
+   * @param channels      List of channel IDs to search or null for all channels.
+   * @param startDateTime Starting date/time to search for. (Overlapping programs will be returned.)
+   * @param endDateTime   Ending date/time to search for. (Overlapping programs will be returned.)
+   * @return A list of program views sorted by channel and date, or empty list of none found.
+   */
+  @NonNull
+  List<VideoProgramView> searchEpgViews(@NonNull String udn, @Nullable List<String> channels, @NonNull Date startDateTime, @NonNull Date endDateTime);
+
+  /**
+   * Perform a generic search of the cache for EPG programs, returning lightweight views.
+   * Objects below the parent that are not EPG programs are not returned.
+   *
+   * @param udn        Server UDN.
+   * @param parentId   Parent object ID. All levels below this parent will be searched.
+   * @param searchText Text to search for in object titles.
+   * @return List of matching program views, or an empty list if none found.
+   */
+  @NonNull
+  List<VideoProgramView> searchViews(@NonNull String udn, @NonNull String parentId, @NonNull String searchText);
+
   /**
    * Check the cache contents and return a count of programs for the specified search criteria.
    *
@@ -0,0 +1,141 @@
+package com.sony.sel.tvapp.util;
+
+import android.support.annotation.Nullable;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+
+/**
+ * Thread safe parser for the ISO 8601 date/times in DLNA metadata, e.g. "2016-04-21T13:00:00Z+0000".
+ * <p/>
+ * The fixed layout servers send is parsed by hand without allocating. Anything else falls back to
+ * a per-thread {@link SimpleDateFormat} with the original lenient pattern, so the results don't change.
+ */
+final class DlnaDateParser {
+
+  /// Result for missing or unparseable text
+  static final long INVALID = Long.MIN_VALUE;
+
+  /// Pattern of the fallback format
+  static final String PATTERN = "yyyy-MM-dd'T'HH:mm:ss'Z'Z";
+
+  private static final long MINUTE_MS = 60 * 1000;
+  private static final long HOUR_MS = 60 * MINUTE_MS;
+  private static final long DAY_MS = 24 * HOUR_MS;
+
+  /// Earliest year parsed by hand. Earlier dates use the fallback's Julian calendar.
+  private static final int FIRST_GREGORIAN_YEAR = 1583;
+
+  private static final int[] DAYS_IN_MONTH = {31, 29, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31};
+
+  private static final ThreadLocal<DateFormat> FALLBACK_FORMAT = new ThreadLocal<DateFormat>() {
+    @Override
+    protected DateFormat initialValue() {
+      return new SimpleDateFormat(PATTERN);
+    }
+  };
+
+  private DlnaDateParser() {
+  }
+
+  /**
+   * Parse a date/time.
+   *
+   * @param text Date/time text, or null.
+   * @return Time in ms since the epoch, or {@link #INVALID} if the text is null or can't be parsed.
+   */
+  static long parse(@Nullable String text) {
+    if (text == null) {
+      return INVALID;
+    }
+    long time = parseFixed(text);
+    if (time != INVALID) {
+      return time;
+    }
+    try {
+      return FALLBACK_FORMAT.get().parse(text).getTime();
+    } catch (ParseException e) {
+      return INVALID;
+    }
+  }
+
+  /**
+   * Parse exactly "yyyy-MM-ddTHH:mm:ssZ+hhmm", the layout of {@link #PATTERN} with in range values.
+   * Other text, even if the fallback accepts it, is left to the fallback so its results don't change.
+   *
+   * @return Time in ms since the epoch, or {@link #INVALID} if the text doesn't have this layout.
+   */
+  static long parseFixed(String text) {
+    if (text.length() != 25 || text.charAt(4) != '-' || text.charAt(7) != '-' || text.charAt(10) != 'T'
+        || text.charAt(13) != ':' || text.charAt(16) != ':' || text.charAt(19) != 'Z') {
+      return INVALID;
+    }
+    int year = digits(text, 0, 4);
+    int month = digits(text, 5, 2);
+    int day = digits(text, 8, 2);
+    int hour = digits(text, 11, 2);
+    int minute = digits(text, 14, 2);
+    int second = digits(text, 17, 2);
+    if (year < FIRST_GREGORIAN_YEAR || month < 1 || month > 12 || day < 1 || day > getDaysInMonth(year, month)
+        || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+      // out of range values are left to the lenient fallback
+      return INVALID;
+    }
+    char sign = text.charAt(20);
+    int offsetHours = digits(text, 21, 2);
+    int offsetMinutes = digits(text, 23, 2);
+    if ((sign != '+' && sign != '-') || offsetHours < 0 || offsetMinutes < 0 || offsetMinutes > 59) {
+      return INVALID;
+    }
+    long offset = offsetHours * HOUR_MS + offsetMinutes * MINUTE_MS;
+    if (sign == '-') {
+      offset = -offset;
+    }
+    return getEpochDay(year, month, day) * DAY_MS + hour * HOUR_MS + minute * MINUTE_MS + second * 1000L - offset;
+  }
+
+  /**
+   * Read a fixed number of decimal digits.
+   *
+   * @return The value, or -1 if the text is too short or has a non-digit.
+   */
+  private static int digits(String text, int start, int count) {
+    if (start + count > text.length()) {
+      return -1;
+    }
+    int value = 0;
+    for (int i = start; i < start + count; i++) {
+      char c = text.charAt(i);
+      if (!isDigit(c)) {
+        return -1;
+      }
+      value = value * 10 + (c - '0');
+    }
+    return value;
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  private static int getDaysInMonth(int year, int month) {
+    if (month == 2 && !(year % 4 == 0 && (year % 100 != 0 || year % 400 == 0))) {
+      return 28;
+    }
+    return DAYS_IN_MONTH[month - 1];
+  }
+
+  /**
+   * Return the number of days from 1970-01-01 to a Gregorian date.
+   */
+  private static long getEpochDay(int year, int month, int day) {
+    // count years from March, so the leap day is at the end of the year
+    int y = month <= 2 ? year - 1 : year;
+    int era = y / 400;
+    int yearOfEra = y - era * 400;
+    int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+    int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097L + dayOfEra - 719468;
+  }
+}
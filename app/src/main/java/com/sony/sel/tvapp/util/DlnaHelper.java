@@ -29,7 +29,7 @@ public class DlnaHelper {
   public static DlnaCache getCache(Context context) {
     if (CACHE == null) {
       // ensure application context is used to prevent leaks
-      CACHE = new DlnaSqlCache(context);
+      CACHE = new TieredDlnaCache(new DlnaMemoryCache(), new DlnaSqlCache(context));
     }
     return CACHE;
   }
@@ -8,6 +8,7 @@ import com.sony.sel.tvapp.util.DlnaObjects.VideoBroadcast;
 
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -89,6 +90,31 @@ public interface DlnaInterface {
   @NonNull
   <T extends DlnaObjects.DlnaObject> List<T> getChildren(String udn, String parentId, Class<T> childClass, @Nullable ContentObserver contentObserver, boolean useCache);
 
+  /**
+   * Return the children of several parents, as {@link #getChildren(String, String, Class, ContentObserver, boolean)}
+   * would without an observer. Parents are browsed concurrently, up to the server's limit set by
+   * {@link #setMaxConcurrentBrowses(String, int)}.
+   *
+   * @param udn        Device UDN.
+   * @param parentIds  Parent IDs.
+   * @param childClass Expected {@link com.sony.sel.tvapp.util.DlnaObjects.DlnaObject} subclass of child elements.
+   * @param useCache   Use cached data if available.
+   * @param <T>        Expected class of child elements.
+   * @return Map of parent ID to children, in the order of the parent IDs. Parents that could not be browsed have empty lists.
+   * If the calling thread is interrupted, browses in progress are cancelled and parents not yet browsed are omitted.
+   */
+  @NonNull
+  <T extends DlnaObjects.DlnaObject> Map<String, List<T>> getChildrenBatch(String udn, List<String> parentIds, Class<T> childClass, boolean useCache);
+
+  /**
+   * Set the maximum number of concurrent Browse & Search actions sent to a server, including those of
+   * {@link #getChildrenBatch(String, List, Class, boolean)}.
+   *
+   * @param udn   Device UDN.
+   * @param limit Maximum number of concurrent browses, at least 1.
+   */
+  void setMaxConcurrentBrowses(@NonNull String udn, int limit);
+
   /**
    * Search for items on a DLNA server.
    *
@@ -102,6 +128,20 @@ public interface DlnaInterface {
   @NonNull
   <T extends DlnaObjects.DlnaObject> List<T> search(String udn, String parentId, String query, final Class<T> childClass);
 
+  /**
+   * Search for items on a DLNA server, delivering results a page at a time as they are found.
+   * Each item is delivered once, even if it is found in more than one place.
+   *
+   * @param udn        Device UDN.
+   * @param parentId   Parent ID to search. "0" is the "root parent".
+   * @param query      Search query string.
+   * @param childClass Expected {@link com.sony.sel.tvapp.util.DlnaObjects.DlnaObject} subclass of child elements.
+   * @param consumer   Consumer of result pages. Returning false stops the search.
+   * @param <T>        Expected class of child elements.
+   * @return Number of items delivered.
+   */
+  <T extends DlnaObjects.DlnaObject> int search(String udn, String parentId, String query, Class<T> childClass, @NonNull DlnaCache.PageConsumer<T> consumer);
+
   /**
    * Return the list of EPG channels.
    *
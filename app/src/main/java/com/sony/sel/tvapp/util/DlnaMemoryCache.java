@@ -4,76 +4,593 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.sony.sel.tvapp.util.DlnaObjects.DlnaObject;
+import static com.sony.sel.tvapp.util.DlnaObjects.VideoProgram;
 
 /**
- * Simple in-memory cache for DLNA child data
+ * Bounded in-memory cache for DLNA child data.
+ * <p/>
+ * Children are cached per parent and weighed by their estimated heap size. The cache is split into
+ * segments, each with its own lock and an equal share of the weight budget, so reads on different
+ * parents rarely contend. Each segment evicts its least recently used parents when over budget.
+ * <p/>
+ * Cached parents are also indexed by object ID, and their EPG programs by channel with sorted
+ * start & end times, so EPG queries take O(log n + k) per cached parent of a channel. Parents are
+ * kept in a sorted map by path, so searches only visit the parents under the search root.
  */
 public class DlnaMemoryCache implements DlnaCache {
 
-  private Map<String, List<DlnaObject>> dlnaCache = new HashMap<>();
+  public static final String TAG = DlnaMemoryCache.class.getSimpleName();
+
+  /// Number of segments. Must be a power of 2.
+  private static final int SEGMENT_COUNT = 16;
+
+  /// Estimated fixed heap cost of a cached object, excluding its strings
+  private static final int OBJECT_WEIGHT = 256;
+
+  /// Estimated fixed heap cost of a cached parent & its list
+  private static final int PARENT_WEIGHT = 128;
+
+  /**
+   * Cache statistics, for sizing the cache per device.
+   */
+  public static class Stats {
+
+    private final long hitCount;
+    private final long missCount;
+    private final long evictionCount;
+    private final long weight;
+    private final long maxWeight;
+    private final int parentCount;
+
+    Stats(long hitCount, long missCount, long evictionCount, long weight, long maxWeight, int parentCount) {
+      this.hitCount = hitCount;
+      this.missCount = missCount;
+      this.evictionCount = evictionCount;
+      this.weight = weight;
+      this.maxWeight = maxWeight;
+      this.parentCount = parentCount;
+    }
+
+    public long getHitCount() {
+      return hitCount;
+    }
+
+    public long getMissCount() {
+      return missCount;
+    }
+
+    public long getEvictionCount() {
+      return evictionCount;
+    }
+
+    /**
+     * @return Estimated heap size of cached children in bytes.
+     */
+    public long getWeight() {
+      return weight;
+    }
+
+    public long getMaxWeight() {
+      return maxWeight;
+    }
+
+    public int getParentCount() {
+      return parentCount;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("hits = %d, misses = %d, evictions = %d, weight = %d/%d, parents = %d",
+          hitCount, missCount, evictionCount, weight, maxWeight, parentCount);
+    }
+  }
+
+  /**
+   * EPG programs of one channel in one parent, sorted by start time.
+   * Times are held in parallel primitive arrays for binary search.
+   */
+  private static class ProgramIndex {
+
+    final VideoProgram[] programs;
+    final long[] starts;
+    final long[] ends;
+
+    /// Longest program, which bounds how early an overlapping program can start
+    final long maxDuration;
+
+    ProgramIndex(List<VideoProgram> channelPrograms, final List<long[]> times) {
+      int size = channelPrograms.size();
+      Integer[] order = new Integer[size];
+      for (int i = 0; i < size; i++) {
+        order[i] = i;
+      }
+      Arrays.sort(order, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer lhs, Integer rhs) {
+          long lhsStart = times.get(lhs)[0];
+          long rhsStart = times.get(rhs)[0];
+          return lhsStart < rhsStart ? -1 : (lhsStart == rhsStart ? 0 : 1);
+        }
+      });
+      programs = new VideoProgram[size];
+      starts = new long[size];
+      ends = new long[size];
+      long max = 0;
+      for (int i = 0; i < size; i++) {
+        programs[i] = channelPrograms.get(order[i]);
+        starts[i] = times.get(order[i])[0];
+        ends[i] = times.get(order[i])[1];
+        max = Math.max(max, ends[i] - starts[i]);
+      }
+      maxDuration = max;
+    }
+
+    /**
+     * Return the first position that may overlap an interval starting at a time.
+     */
+    int first(long start) {
+      // a program starting at or before start - maxDuration ends at or before start
+      return upperBound(starts, start - maxDuration);
+    }
+
+    /**
+     * Return the position after the last program starting at or before a time.
+     */
+    int last(long end) {
+      return upperBound(starts, end);
+    }
+
+    /**
+     * Return the first index of a sorted array with a value greater than a key.
+     */
+    private static int upperBound(long[] values, long key) {
+      int low = 0;
+      int high = values.length;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (values[mid] <= key) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+  }
+
+  /**
+   * Children of one parent, their estimated weight, normalized titles and EPG programs by channel.
+   */
+  private static class Entry {
+
+    final String key;
+    final String udn;
+    final List<DlnaObject> children;
+    final long weight;
+    final String[] titles;
+    final Map<String, ProgramIndex> channels = new HashMap<>();
+
+    Entry(String key, String udn, List<DlnaObject> children, long weight) {
+      this.key = key;
+      this.udn = udn;
+      this.children = children;
+      this.weight = weight;
+      titles = new String[children.size()];
+      int i = 0;
+      for (DlnaObject child : children) {
+        titles[i++] = normalize(child.getTitle());
+      }
+      // programs without a channel or times are never returned by EPG queries, as in the SQLite cache
+      Map<String, List<VideoProgram>> programs = new HashMap<>();
+      Map<String, List<long[]>> times = new HashMap<>();
+      for (DlnaObject child : children) {
+        if (child instanceof VideoProgram) {
+          VideoProgram program = (VideoProgram) child;
+          long start = program.getScheduledStartMillis();
+          long end = program.getScheduledEndMillis();
+          if (program.getChannelId() != null && start != VideoProgram.NO_TIME && end != VideoProgram.NO_TIME) {
+            List<VideoProgram> channelPrograms = programs.get(program.getChannelId());
+            if (channelPrograms == null) {
+              channelPrograms = new ArrayList<>();
+              programs.put(program.getChannelId(), channelPrograms);
+              times.put(program.getChannelId(), new ArrayList<long[]>());
+            }
+            channelPrograms.add(program);
+            times.get(program.getChannelId()).add(new long[]{start, end});
+          }
+        }
+      }
+      for (Map.Entry<String, List<VideoProgram>> channel : programs.entrySet()) {
+        channels.put(channel.getKey(), new ProgramIndex(channel.getValue(), times.get(channel.getKey())));
+      }
+    }
+  }
+
+  /**
+   * One lock stripe: an access-ordered map with its own weight budget.
+   */
+  private class Segment {
+
+    final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    final long maxWeight;
+    long weight;
+
+    Segment(long maxWeight) {
+      this.maxWeight = maxWeight;
+    }
+
+    synchronized Entry get(String key) {
+      return entries.get(key);
+    }
+
+    synchronized void put(String key, Entry entry) {
+      Entry previous = entries.put(key, entry);
+      if (previous != null) {
+        weight -= previous.weight;
+        unindex(previous);
+      }
+      weight += entry.weight;
+      index(entry);
+      // evict least recently used parents, never the one just added
+      Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+      while (weight > maxWeight && entries.size() > 1) {
+        Map.Entry<String, Entry> eldest = iterator.next();
+        weight -= eldest.getValue().weight;
+        unindex(eldest.getValue());
+        iterator.remove();
+        evictionCount.incrementAndGet();
+      }
+    }
+
+    synchronized void clear() {
+      for (Entry entry : entries.values()) {
+        unindex(entry);
+      }
+      entries.clear();
+      weight = 0;
+    }
+  }
+
+  private final Segment[] segments = new Segment[SEGMENT_COUNT];
+  private final long maxWeight;
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+  private final AtomicLong evictionCount = new AtomicLong();
+
+  /// EPG program indexes by UDN, then by channel ID in the SQLite cache's sort order
+  private final Map<String, TreeMap<String, List<ProgramIndex>>> epgIndex = new HashMap<>();
+
+  /// Cached objects by UDN & ID
+  private final Map<String, DlnaObject> idIndex = new ConcurrentHashMap<>();
+
+  /// Cached parents by key, sorted so the parents under a path are a contiguous range
+  private final ConcurrentSkipListMap<String, Entry> parentIndex = new ConcurrentSkipListMap<>();
+
+  /**
+   * Create a cache using an eighth of the maximum heap.
+   */
+  public DlnaMemoryCache() {
+    this(Runtime.getRuntime().maxMemory() / 8);
+  }
+
+  /**
+   * Create a cache with a weight budget.
+   *
+   * @param maxWeight Maximum estimated heap size of cached children in bytes.
+   */
+  public DlnaMemoryCache(long maxWeight) {
+    this.maxWeight = maxWeight;
+    for (int i = 0; i < SEGMENT_COUNT; i++) {
+      segments[i] = new Segment(maxWeight / SEGMENT_COUNT);
+    }
+  }
 
   @Override
   @Nullable
   public <T extends DlnaObject> List<T> getChildren(String udn, String parentId) {
-    synchronized (dlnaCache) {
-      List<DlnaObject> cachedChildren = dlnaCache.get(udn + "/" + parentId);
-      if (cachedChildren != null) {
-        return (List<T>) cachedChildren;
-      }
+    String key = udn + "/" + parentId;
+    Entry entry = getSegment(key).get(key);
+    if (entry != null) {
+      hitCount.incrementAndGet();
+      // callers may sort or modify the list, so never hand out the cached one
+      return new ArrayList<>((List<T>) entry.children);
     }
+    missCount.incrementAndGet();
     return null;
   }
 
   @Override
   public void add(String udn, String parentId, List<DlnaObject> children) {
-    synchronized (dlnaCache) {
-      dlnaCache.put(udn + "/" + parentId, children);
+    String key = udn + "/" + parentId;
+    getSegment(key).put(key, new Entry(key, udn, children, getWeight(children)));
+  }
+
+  @Override
+  public void addAll(@NonNull String udn, @NonNull Map<String, List<DlnaObject>> parents) {
+    for (Map.Entry<String, List<DlnaObject>> entry : parents.entrySet()) {
+      add(udn, entry.getKey(), entry.getValue());
+    }
+  }
+
+  /**
+   * Return a snapshot of the cache statistics.
+   */
+  @NonNull
+  public Stats getStats() {
+    long weight = 0;
+    int parentCount = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        weight += segment.weight;
+        parentCount += segment.entries.size();
+      }
     }
+    return new Stats(hitCount.get(), missCount.get(), evictionCount.get(), weight, maxWeight, parentCount);
+  }
+
+  /**
+   * Add a parent's children to the ID & EPG indexes. Called with its segment locked.
+   */
+  private void index(Entry entry) {
+    parentIndex.put(entry.key, entry);
+    synchronized (idIndex) {
+      for (DlnaObject child : entry.children) {
+        if (child.getId() != null) {
+          idIndex.put(entry.udn + "/" + child.getId(), child);
+        }
+      }
+    }
+    if (entry.channels.isEmpty()) {
+      return;
+    }
+    synchronized (epgIndex) {
+      TreeMap<String, List<ProgramIndex>> channels = epgIndex.get(entry.udn);
+      if (channels == null) {
+        channels = new TreeMap<>();
+        epgIndex.put(entry.udn, channels);
+      }
+      for (Map.Entry<String, ProgramIndex> channel : entry.channels.entrySet()) {
+        List<ProgramIndex> indexes = channels.get(channel.getKey());
+        if (indexes == null) {
+          indexes = new ArrayList<>(1);
+          channels.put(channel.getKey(), indexes);
+        }
+        indexes.add(channel.getValue());
+      }
+    }
+  }
+
+  /**
+   * Remove a parent's children from the ID & EPG indexes. Called with its segment locked.
+   * An ID cached under several parents is only kept while the last parent added with it is cached.
+   * Parents in other segments index concurrently, so IDs are only removed while they still map to this parent's object.
+   */
+  private void unindex(Entry entry) {
+    parentIndex.remove(entry.key, entry);
+    synchronized (idIndex) {
+      for (DlnaObject child : entry.children) {
+        if (child.getId() == null) {
+          continue;
+        }
+        String key = entry.udn + "/" + child.getId();
+        // objects are equal by ID, so compare instances
+        if (idIndex.get(key) == child) {
+          idIndex.remove(key);
+        }
+      }
+    }
+    if (entry.channels.isEmpty()) {
+      return;
+    }
+    synchronized (epgIndex) {
+      TreeMap<String, List<ProgramIndex>> channels = epgIndex.get(entry.udn);
+      for (Map.Entry<String, ProgramIndex> channel : entry.channels.entrySet()) {
+        List<ProgramIndex> indexes = channels.get(channel.getKey());
+        indexes.remove(channel.getValue());
+        if (indexes.isEmpty()) {
+          channels.remove(channel.getKey());
+        }
+      }
+      if (channels.isEmpty()) {
+        epgIndex.remove(entry.udn);
+      }
+    }
+  }
+
+  private Segment getSegment(String key) {
+    // spread the hash so keys differing only in high bits use different segments
+    int hash = key.hashCode();
+    hash ^= (hash >>> 16);
+    return segments[hash & (SEGMENT_COUNT - 1)];
+  }
+
+  /**
+   * Estimate the heap size of a list of children from the lengths of their strings, at 2 bytes per char.
+   * Strings are counted as the codec visits them, without encoding.
+   */
+  static long getWeight(List<DlnaObject> children) {
+    long weight = PARENT_WEIGHT;
+    for (DlnaObject child : children) {
+      weight += OBJECT_WEIGHT + 2L * DlnaObjectCodec.getCharCount(child);
+    }
+    return weight;
+  }
+
+  /**
+   * Normalize a title for searching. Locale independent, so e.g. a Turkish default locale can't break matching of "I".
+   */
+  private static String normalize(String title) {
+    return title != null ? title.toLowerCase(Locale.ROOT) : null;
   }
 
   @Override
   public <T extends DlnaObject> List<T> search(String udn, String parentId, String searchText) {
     final List<DlnaObject> results = new ArrayList<>();
-    synchronized (dlnaCache) {
-      for (String key : dlnaCache.keySet()) {
-        if (key.startsWith(udn + "/" + parentId)) {
-          // matching parent, check for matching content
-          List<DlnaObject> contents = dlnaCache.get(key);
-          for (DlnaObject item : contents) {
-            if (item.getTitle().toLowerCase().contains(searchText.toLowerCase())) {
-              results.add(item);
+    String prefix = udn + "/" + parentId;
+    String text = normalize(searchText);
+    // parents whose key starts with the prefix sort directly after it
+    for (Entry entry : parentIndex.tailMap(prefix).values()) {
+      if (!entry.key.startsWith(prefix)) {
+        break;
+      }
+      int i = 0;
+      for (DlnaObject child : entry.children) {
+        String title = entry.titles[i++];
+        if (title != null && title.contains(text)) {
+          results.add(child);
+        }
+      }
+    }
+    return (List<T>) results;
+  }
+
+  @NonNull
+  @Override
+  public List<VideoProgram> searchEpg(@NonNull String udn, @Nullable List<String> channels, @NonNull Date startDateTime, @NonNull Date endDateTime) {
+    List<VideoProgram> results = new ArrayList<>();
+    searchEpg(udn, channels, startDateTime.getTime(), endDateTime.getTime(), results);
+    return results;
+  }
+
+  /**
+   * Find EPG programs overlapping a time interval, sorted by channel and start time.
+   *
+   * @param results List to add programs to, or null to only count them.
+   * @return Number of matching programs.
+   */
+  private int searchEpg(String udn, List<String> channels, long start, long end, @Nullable List<VideoProgram> results) {
+    int count = 0;
+    synchronized (epgIndex) {
+      TreeMap<String, List<ProgramIndex>> udnChannels = epgIndex.get(udn);
+      if (udnChannels == null) {
+        return 0;
+      }
+      Collection<String> channelIds = channels != null ? new TreeSet<>(channels) : udnChannels.keySet();
+      for (String channelId : channelIds) {
+        List<ProgramIndex> indexes = udnChannels.get(channelId);
+        if (indexes == null) {
+          continue;
+        }
+        // merge the candidate ranges of each parent with programs on this channel by start time
+        int[] positions = new int[indexes.size()];
+        int[] limits = new int[indexes.size()];
+        for (int i = 0; i < indexes.size(); i++) {
+          positions[i] = indexes.get(i).first(start);
+          limits[i] = indexes.get(i).last(end);
+        }
+        while (true) {
+          int next = -1;
+          for (int i = 0; i < indexes.size(); i++) {
+            if (positions[i] < limits[i] && (next < 0 || indexes.get(i).starts[positions[i]] < indexes.get(next).starts[positions[next]])) {
+              next = i;
+            }
+          }
+          if (next < 0) {
+            break;
+          }
+          ProgramIndex index = indexes.get(next);
+          int position = positions[next]++;
+          if (index.ends[position] > start) {
+            count++;
+            if (results != null) {
+              results.add(index.programs[position]);
             }
           }
         }
       }
     }
-    return (List<T>) results;
+    return count;
   }
 
   @Override
-  public List<DlnaObjects.VideoProgram> searchEpg(String udn, List<String> channels, Date startDateTime, Date endDateTime) {
-    return null;
+  public int searchEpg(@NonNull String udn, @Nullable List<String> channels, @NonNull Date startDateTime, @NonNull Date endDateTime, int pageSize, @NonNull PageConsumer<VideoProgram> consumer) {
+    return deliverPages(searchEpg(udn, channels, startDateTime, endDateTime), pageSize, consumer);
+  }
+
+  @Override
+  public <T extends DlnaObject> int search(@NonNull String udn, @NonNull String parentId, @NonNull String searchText, int pageSize, @NonNull PageConsumer<T> consumer) {
+    List<T> results = search(udn, parentId, searchText);
+    return deliverPages(results, pageSize, consumer);
+  }
+
+  /**
+   * Deliver an already built result list in pages.
+   * The whole list is materialized first, so paging saves no memory here and only keeps the callback contract.
+   */
+  static <T> int deliverPages(List<T> results, int pageSize, PageConsumer<T> consumer) {
+    if (pageSize <= 0) {
+      throw new IllegalArgumentException("Page size must be positive.");
+    }
+    int delivered = 0;
+    if (results != null) {
+      for (int from = 0; from < results.size(); from += pageSize) {
+        List<T> page = new ArrayList<>(results.subList(from, Math.min(from + pageSize, results.size())));
+        delivered += page.size();
+        if (!consumer.onPage(page)) {
+          break;
+        }
+      }
+    }
+    return delivered;
+  }
+
+  @Override
+  public List<VideoProgramView> searchEpgViews(@NonNull String udn, @Nullable List<String> channels, @NonNull Date startDateTime, @NonNull Date endDateTime) {
+    return toViews(searchEpg(udn, channels, startDateTime, endDateTime));
+  }
+
+  @Override
+  public List<VideoProgramView> searchViews(@NonNull String udn, @NonNull String parentId, @NonNull String searchText) {
+    return toViews(search(udn, parentId, searchText));
+  }
+
+  /**
+   * Wrap the EPG programs in a list of objects as views. Objects are already decoded, so nothing is deferred.
+   */
+  static List<VideoProgramView> toViews(List<? extends DlnaObject> objects) {
+    List<VideoProgramView> views = new ArrayList<>();
+    if (objects != null) {
+      for (DlnaObject object : objects) {
+        if (object instanceof VideoProgram) {
+          views.add(new VideoProgramView((VideoProgram) object));
+        }
+      }
+    }
+    return views;
   }
 
   @Override
   public int countEpgItems(@NonNull String udn, @NonNull List<String> channels, @NonNull Date startDateTime, @NonNull Date endDateTime) {
-    return 0;
+    return searchEpg(udn, channels, startDateTime.getTime(), endDateTime.getTime(), null);
   }
 
   @Override
   public void reset() {
-    dlnaCache.clear();
+    for (Segment segment : segments) {
+      segment.clear();
+    }
   }
 
   @Nullable
   @Override
   public <T extends DlnaObject> T getItemById(@NonNull String udn, @NonNull String id) {
-    return null;
+    return (T) idIndex.get(udn + "/" + id);
   }
 }
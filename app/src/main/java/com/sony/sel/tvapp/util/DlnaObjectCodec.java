@@ -0,0 +1,200 @@
+package com.sony.sel.tvapp.util;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.sony.sel.tvapp.util.DlnaObjects.DlnaObject;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Compact binary encoding of {@link DlnaObject}s for the SQLite cache.
+ * <p/>
+ * An encoded object is a version byte followed by the object's fields, base class fields first,
+ * as written by each class's writeFields(). Strings are a varint of (length + 1), or 0 for null,
+ * followed by UTF-8 bytes. The object class is not encoded; it is resolved from the UPnP class column.
+ */
+final class DlnaObjectCodec {
+
+  /// Current encoding version. Bump when the field layout of any encoded class changes.
+  static final int VERSION = 1;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private DlnaObjectCodec() {
+  }
+
+  /**
+   * Encode an object.
+   *
+   * @param object Object to encode.
+   * @return Encoded bytes.
+   */
+  @NonNull
+  static byte[] encode(@NonNull DlnaObject object) {
+    Output out = new Output();
+    out.writeByte(VERSION);
+    object.writeFields(out);
+    return out.toByteArray();
+  }
+
+  /**
+   * Decode an object.
+   *
+   * @param upnpClass UPnP class of the object, used to select the class to instantiate.
+   * @param data      Encoded bytes.
+   * @param <T>       Expected object class.
+   * @return Decoded object.
+   * @throws IllegalArgumentException if the data has an unsupported version or the class is not resolved.
+   */
+  @NonNull
+  static <T extends DlnaObject> T decode(@NonNull String upnpClass, @NonNull byte[] data) {
+    Input in = new Input(data);
+    int version = in.readByte();
+    if (version != VERSION) {
+      throw new IllegalArgumentException("Unsupported encoding version " + version + ".");
+    }
+    try {
+      DlnaObject object = DlnaObjects.DlnaClass.classOf(upnpClass).newInstance();
+      object.readFields(in);
+      return (T) object;
+    } catch (InstantiationException e) {
+      throw new IllegalArgumentException("DLNA class " + upnpClass + " could not be created.", e);
+    } catch (IllegalAccessException e) {
+      throw new IllegalArgumentException("DLNA class " + upnpClass + " could not be created.", e);
+    }
+  }
+
+  /**
+   * Return the number of chars in an object's string fields, without encoding them.
+   *
+   * @param object Object to measure.
+   * @return Total length of the non-null strings the object encodes.
+   */
+  static long getCharCount(@NonNull DlnaObject object) {
+    CharCounter counter = new CharCounter();
+    object.writeFields(counter);
+    return counter.count;
+  }
+
+  /**
+   * Growable output buffer.
+   */
+  static class Output {
+
+    private byte[] buffer;
+    private int length;
+
+    Output() {
+      this(256);
+    }
+
+    private Output(int capacity) {
+      buffer = new byte[capacity];
+    }
+
+    void writeByte(int value) {
+      ensureCapacity(1);
+      buffer[length++] = (byte) value;
+    }
+
+    void writeVarInt(int value) {
+      ensureCapacity(5);
+      while ((value & ~0x7F) != 0) {
+        buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      buffer[length++] = (byte) value;
+    }
+
+    void writeString(@Nullable String value) {
+      if (value == null) {
+        writeVarInt(0);
+        return;
+      }
+      byte[] bytes = value.getBytes(UTF_8);
+      writeVarInt(bytes.length + 1);
+      ensureCapacity(bytes.length);
+      System.arraycopy(bytes, 0, buffer, length, bytes.length);
+      length += bytes.length;
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(buffer, length);
+    }
+
+    private void ensureCapacity(int count) {
+      if (length + count > buffer.length) {
+        buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + count));
+      }
+    }
+  }
+
+  /**
+   * Output that only counts the chars of the strings written to it.
+   */
+  private static final class CharCounter extends Output {
+
+    long count;
+
+    CharCounter() {
+      super(0);
+    }
+
+    @Override
+    void writeByte(int value) {
+    }
+
+    @Override
+    void writeVarInt(int value) {
+    }
+
+    @Override
+    void writeString(@Nullable String value) {
+      if (value != null) {
+        count += value.length();
+      }
+    }
+  }
+
+  /**
+   * Input reader over an encoded byte array.
+   */
+  static final class Input {
+
+    private final byte[] buffer;
+    private int position;
+
+    Input(byte[] buffer) {
+      this.buffer = buffer;
+    }
+
+    int readByte() {
+      return buffer[position++] & 0xFF;
+    }
+
+    int readVarInt() {
+      int value = 0;
+      int shift = 0;
+      int b;
+      do {
+        b = buffer[position++];
+        value |= (b & 0x7F) << shift;
+        shift += 7;
+      } while ((b & 0x80) != 0);
+      return value;
+    }
+
+    @Nullable
+    String readString() {
+      int length = readVarInt() - 1;
+      if (length < 0) {
+        return null;
+      }
+      String value = new String(buffer, position, length, UTF_8);
+      position += length;
+      return value;
+    }
+  }
+}
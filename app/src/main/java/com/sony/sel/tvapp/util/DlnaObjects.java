@@ -20,10 +20,14 @@ import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /**
@@ -45,11 +49,16 @@ public class DlnaObjects {
     String value();
   }
 
-  /// Date format for UTC dates/times
-  private static final DateFormat DATE_FORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'Z");
-
-  /// Time format for duration
-  private static final DateFormat TIME_FORMAT = new SimpleDateFormat("'P'hh:mm:ss");
+  /// Time format for duration, per thread since formats aren't thread safe
+  private static final ThreadLocal<DateFormat> TIME_FORMAT = new ThreadLocal<DateFormat>() {
+    @Override
+    protected DateFormat initialValue() {
+      DateFormat format = new SimpleDateFormat("'P'hh:mm:ss");
+      // need to set time zone to UTC for proper parsing
+      format.setTimeZone(TimeZone.getTimeZone("UTC"));
+      return format;
+    }
+  };
 
   /**
    * Enumeration of all DLNA data classes.
@@ -110,6 +119,207 @@ public class DlnaObjects {
 
   }
 
+  /**
+   * The annotated fields of a class, found once and reused for every object loaded from a cursor.
+   */
+  private static final class ColumnPlan {
+
+    private static final int TYPE_STRING = 0;
+    private static final int TYPE_INTEGER = 1;
+    private static final int TYPE_BLOB = 2;
+
+    /// Plans by class
+    private static final Map<Class<?>, ColumnPlan> PLANS = new ConcurrentHashMap<>();
+
+    /// Columns every projection includes, needed to identify and create objects
+    private static final List<String> REQUIRED_COLUMNS = Arrays.asList("@id", "upnp:class");
+
+    private final Field[] fields;
+    private final String[] columnNames;
+    private final int[] types;
+
+    /// Trimmed projections by their requested columns
+    private final Map<List<String>, String[]> projections = new ConcurrentHashMap<>();
+
+    private ColumnPlan(List<Field> fields, List<String> columnNames, List<Integer> types) {
+      this.fields = fields.toArray(new Field[fields.size()]);
+      this.columnNames = columnNames.toArray(new String[columnNames.size()]);
+      this.types = new int[types.size()];
+      for (int i = 0; i < this.types.length; i++) {
+        this.types[i] = types.get(i);
+      }
+    }
+
+    /**
+     * Return the plan for a class, building it the first time.
+     */
+    static ColumnPlan of(Class<?> clazz) {
+      ColumnPlan plan = PLANS.get(clazz);
+      if (plan == null) {
+        plan = build(clazz);
+        PLANS.put(clazz, plan);
+      }
+      return plan;
+    }
+
+    private static ColumnPlan build(Class<?> clazz) {
+      List<Field> fields = new ArrayList<>();
+      List<String> columnNames = new ArrayList<>();
+      List<Integer> types = new ArrayList<>();
+      for (Class c = clazz; c != Object.class; c = c.getSuperclass()) {
+        for (Field field : c.getDeclaredFields()) {
+          // check for column name annotations
+          ColumnName annotation = field.getAnnotation(ColumnName.class);
+          if (annotation == null || annotation.value() == null) {
+            continue;
+          }
+          int type;
+          if (field.getType() == String.class) {
+            type = TYPE_STRING;
+          } else if (field.getType() == Integer.class) {
+            type = TYPE_INTEGER;
+          } else if (field.getType() == byte[].class) {
+            type = TYPE_BLOB;
+          } else {
+            // unsupported field type
+            continue;
+          }
+          // allow access to private fields
+          field.setAccessible(true);
+          fields.add(field);
+          columnNames.add(annotation.value());
+          types.add(type);
+        }
+      }
+      return new ColumnPlan(fields, columnNames, types);
+    }
+
+    /**
+     * Return the column names of the fields, for a query projection.
+     */
+    String[] getColumnNames() {
+      return columnNames.clone();
+    }
+
+    /**
+     * Return the column names of the fields that are in a list of columns, plus the required columns.
+     *
+     * @param columns Columns wanted.
+     */
+    String[] getColumnNames(List<String> columns) {
+      String[] projection = projections.get(columns);
+      if (projection == null) {
+        List<String> names = new ArrayList<>();
+        for (String columnName : columnNames) {
+          if ((columns.contains(columnName) || REQUIRED_COLUMNS.contains(columnName)) && !names.contains(columnName)) {
+            names.add(columnName);
+          }
+        }
+        projection = names.toArray(new String[names.size()]);
+        projections.put(new ArrayList<>(columns), projection);
+      }
+      return projection.clone();
+    }
+
+    /**
+     * Look up the index of each field's column in a cursor.
+     *
+     * @return Column indexes, -1 for columns the cursor doesn't have.
+     */
+    int[] getColumnIndexes(Cursor cursor) {
+      int[] indexes = new int[columnNames.length];
+      for (int i = 0; i < indexes.length; i++) {
+        indexes[i] = cursor.getColumnIndex(columnNames[i]);
+      }
+      return indexes;
+    }
+
+    /**
+     * Look up the index of each field's column in a map of a cursor's columns.
+     *
+     * @return Column indexes, -1 for columns the cursor doesn't have.
+     */
+    int[] getColumnIndexes(Map<String, Integer> cursorColumns) {
+      int[] indexes = new int[columnNames.length];
+      for (int i = 0; i < indexes.length; i++) {
+        Integer index = cursorColumns.get(columnNames[i]);
+        indexes[i] = index != null ? index : -1;
+      }
+      return indexes;
+    }
+
+    /**
+     * Store the columns of the cursor's current row in an object's fields.
+     *
+     * @param indexes Column indexes from {@link #getColumnIndexes(Cursor)}.
+     */
+    void load(Object object, Cursor cursor, int[] indexes) {
+      try {
+        for (int i = 0; i < fields.length; i++) {
+          int index = indexes[i];
+          if (index < 0) {
+            continue;
+          }
+          switch (types[i]) {
+            case TYPE_STRING:
+              fields[i].set(object, cursor.getString(index));
+              break;
+            case TYPE_INTEGER:
+              fields[i].set(object, cursor.getInt(index));
+              break;
+            case TYPE_BLOB:
+              fields[i].set(object, cursor.getBlob(index));
+              break;
+          }
+        }
+      } catch (IllegalAccessException e) {
+        // fields were made accessible when the plan was built
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
+  /**
+   * Loads objects from the rows of one cursor. Column indexes are looked up once for each class,
+   * so loading a row only reads its columns and stores them in fields.
+   * <p/>
+   * A binder belongs to one cursor and is not thread safe.
+   */
+  public static final class CursorBinder {
+
+    private final Cursor cursor;
+
+    /// Index of each column in the cursor, shared by all classes
+    private final Map<String, Integer> cursorColumns = new HashMap<>();
+
+    /// Column indexes in the cursor by class, for the classes loaded so far
+    private final Map<Class<?>, int[]> columnIndexes = new HashMap<>();
+
+    public CursorBinder(@NonNull Cursor cursor) {
+      this.cursor = cursor;
+      String[] names = cursor.getColumnNames();
+      for (int i = names.length - 1; i >= 0; i--) {
+        // the first of any duplicate names wins, as with Cursor.getColumnIndex()
+        cursorColumns.put(names[i], i);
+      }
+    }
+
+    /**
+     * Load an object from the cursor's current row.
+     *
+     * @param object Object to load.
+     */
+    public void load(@NonNull CursorObject object) {
+      ColumnPlan plan = ColumnPlan.of(object.getClass());
+      int[] indexes = columnIndexes.get(object.getClass());
+      if (indexes == null) {
+        indexes = plan.getColumnIndexes(cursorColumns);
+        columnIndexes.put(object.getClass(), indexes);
+      }
+      plan.load(object, cursor, indexes);
+    }
+  }
+
   /**
    * Base class for objects that can be extracted from Cursors.
    * The {@link com.sony.sel.tvapp.util.DlnaObjects.ColumnName} annotation is used
@@ -126,37 +336,13 @@ public class DlnaObjects {
 
     /**
      * Load object contents from a cursor.
+     * To load many rows from the same cursor, use a {@link CursorBinder}, which looks up column indexes once.
      *
      * @param cursor Cursor containing DLNA object data.
      */
     public final void loadFromCursor(Cursor cursor) {
-      for (Class clazz = this.getClass(); clazz != Object.class; clazz = clazz.getSuperclass()) {
-        for (Field field : clazz.getDeclaredFields()) {
-          // allow access to private fields
-          field.setAccessible(true);
-          // check for column name annotations
-          ColumnName annotation = field.getAnnotation(ColumnName.class);
-          if (annotation != null) {
-            String columnName = annotation.value();
-            if (columnName != null) {
-              int columnIndex = cursor.getColumnIndex(columnName);
-              if (columnIndex >= 0) {
-                try {
-                  if (field.getType() == String.class) {
-                    field.set(this, cursor.getString(columnIndex));
-                  } else if (field.getType() == Integer.class) {
-                    field.set(this, cursor.getInt(columnIndex));
-                  } else if (field.getType() == byte[].class) {
-                    field.set(this, cursor.getBlob(columnIndex));
-                  }
-                } catch (IllegalAccessException e) {
-                  // TODO log access errors
-                }
-              }
-            }
-          }
-        }
-      }
+      ColumnPlan plan = ColumnPlan.of(getClass());
+      plan.load(this, cursor, plan.getColumnIndexes(cursor));
     }
 
     /**
@@ -167,24 +353,41 @@ public class DlnaObjects {
      * @return List of columns for use in Content Queries.
      */
     public static <T extends DlnaObject> String[] getColumnNames(Class<T> clazz) {
-      List<String> columnNames = new ArrayList<>();
-      for (Class c = clazz; c != Object.class; c = c.getSuperclass()) {
-        for (Field field : c.getDeclaredFields()) {
-          // allow access to private fields
-          field.setAccessible(true);
-          // check for column name annotations
-          ColumnName annotation = field.getAnnotation(ColumnName.class);
-          if (annotation != null) {
-            String columnName = annotation.value();
-            if (columnName != null) {
-              columnNames.add(columnName);
-            }
-          }
-        }
-      }
-      String[] columnArray = new String[columnNames.size()];
-      columnNames.toArray(columnArray);
-      return columnArray;
+      return ColumnPlan.of(clazz).getColumnNames();
+    }
+
+    /**
+     * Return a trimmed list of Cursor column names, for screens that only show some fields of a DLNA object class.
+     * The ID and UPnP class columns are always included, so objects can still be created.
+     *
+     * @param clazz   Class.
+     * @param columns Columns to include. Columns the class doesn't read are left out.
+     * @param <T>     Class.
+     * @return List of columns for use in Content Queries.
+     */
+    public static <T extends DlnaObject> String[] getColumnNames(Class<T> clazz, String... columns) {
+      return ColumnPlan.of(clazz).getColumnNames(Arrays.asList(columns));
+    }
+
+    /**
+     * Write data fields for {@link DlnaObjectCodec}. Subclasses that declare fields
+     * must call super first and write the fields in the same order they are read.
+     *
+     * @param out Output buffer.
+     */
+    void writeFields(DlnaObjectCodec.Output out) {
+      out.writeString(uid);
+      out.writeString(id);
+    }
+
+    /**
+     * Read data fields written by {@link #writeFields(DlnaObjectCodec.Output)}.
+     *
+     * @param in Input buffer.
+     */
+    void readFields(DlnaObjectCodec.Input in) {
+      uid = in.readString();
+      id = in.readString();
     }
 
     @Override
@@ -457,6 +660,30 @@ public class DlnaObjects {
     public void setResAdditionalInfo(String resAdditionalInfo) {
       this.resAdditionalInfo = resAdditionalInfo;
     }
+
+    @Override
+    void writeFields(DlnaObjectCodec.Output out) {
+      super.writeFields(out);
+      out.writeString(title);
+      out.writeString(upnpClass);
+      out.writeString(res);
+      out.writeString(protocolInfo);
+      out.writeString(icon);
+      out.writeString(resMimeType);
+      out.writeString(resAdditionalInfo);
+    }
+
+    @Override
+    void readFields(DlnaObjectCodec.Input in) {
+      super.readFields(in);
+      title = in.readString();
+      upnpClass = in.readString();
+      res = in.readString();
+      protocolInfo = in.readString();
+      icon = in.readString();
+      resMimeType = in.readString();
+      resAdditionalInfo = in.readString();
+    }
   }
 
   /**
@@ -574,6 +801,16 @@ public class DlnaObjects {
     private String scheduledEndTime;
     @ColumnName("upnp:scheduledDurationTime")
     private String scheduledDurationTime;
+
+    /// Schedule time in ms of a program without a valid time
+    public static final long NO_TIME = DlnaDateParser.INVALID;
+
+    /// Marks a schedule time that hasn't been parsed yet
+    private static final long TIME_NOT_PARSED = Long.MAX_VALUE;
+
+    /// Schedule times in ms, parsed on first use. Reset by the setters.
+    private transient volatile long scheduledStartMillis = TIME_NOT_PARSED;
+    private transient volatile long scheduledEndMillis = TIME_NOT_PARSED;
 //    @ColumnName("upnp:recordable")
 //    private String recordable;
 
@@ -614,27 +851,41 @@ public class DlnaObjects {
     }
 
     public Date getScheduledStartTime() {
-      if (scheduledStartTime != null) {
-        try {
-          return DATE_FORMAT.parse(scheduledStartTime);
-        } catch (ParseException e) {
-          return null;
-        }
-      } else {
-        return null;
-      }
+      long time = getScheduledStartMillis();
+      return time != NO_TIME ? new Date(time) : null;
     }
 
     public Date getScheduledEndTime() {
-      if (scheduledEndTime != null) {
-        try {
-          return DATE_FORMAT.parse(scheduledEndTime);
-        } catch (ParseException e) {
-          return null;
-        }
-      } else {
-        return null;
+      long time = getScheduledEndMillis();
+      return time != NO_TIME ? new Date(time) : null;
+    }
+
+    /**
+     * Return the scheduled start time in ms since the epoch, without allocating a Date.
+     *
+     * @return Start time, or {@link #NO_TIME} if it is missing or can't be parsed.
+     */
+    public long getScheduledStartMillis() {
+      long time = scheduledStartMillis;
+      if (time == TIME_NOT_PARSED) {
+        time = DlnaDateParser.parse(scheduledStartTime);
+        scheduledStartMillis = time;
+      }
+      return time;
+    }
+
+    /**
+     * Return the scheduled end time in ms since the epoch, without allocating a Date.
+     *
+     * @return End time, or {@link #NO_TIME} if it is missing or can't be parsed.
+     */
+    public long getScheduledEndMillis() {
+      long time = scheduledEndMillis;
+      if (time == TIME_NOT_PARSED) {
+        time = DlnaDateParser.parse(scheduledEndTime);
+        scheduledEndMillis = time;
       }
+      return time;
     }
 
     /**
@@ -643,9 +894,7 @@ public class DlnaObjects {
     public long getScheduledDurationTime() {
       if (scheduledDurationTime != null) {
         try {
-          // need to set time zone to UTC for proper parsing
-          TIME_FORMAT.setTimeZone(TimeZone.getTimeZone("UTC"));
-          return TIME_FORMAT.parse(scheduledDurationTime).getTime();
+          return TIME_FORMAT.get().parse(scheduledDurationTime).getTime();
         } catch (ParseException e) {
           return 0;
         }
@@ -736,10 +985,12 @@ public class DlnaObjects {
 
     public void setScheduledStartTime(String scheduledStartTime) {
       this.scheduledStartTime = scheduledStartTime;
+      scheduledStartMillis = TIME_NOT_PARSED;
     }
 
     public void setScheduledEndTime(String scheduledEndTime) {
       this.scheduledEndTime = scheduledEndTime;
+      scheduledEndMillis = TIME_NOT_PARSED;
     }
 
     public void setScheduleDurationTime(String scheduledDurationTime) {
@@ -786,6 +1037,55 @@ public class DlnaObjects {
       this.episodeType = episodeType;
     }
 
+    @Override
+    void writeFields(DlnaObjectCodec.Output out) {
+      super.writeFields(out);
+      out.writeString(channelName);
+      out.writeString(channelNumber);
+      out.writeString(programTitle);
+      out.writeString(seriesTitle);
+      out.writeString(programId);
+      out.writeString(seriesId);
+      out.writeString(channelId);
+      out.writeString(episodeNumber);
+      out.writeString(episodeSeason);
+      out.writeString(rating);
+      out.writeString(episodeType);
+      out.writeString(genre);
+      out.writeString(callSign);
+      out.writeString(networkAffiliation);
+      out.writeString(description);
+      out.writeString(longDescription);
+      out.writeString(scheduledStartTime);
+      out.writeString(scheduledEndTime);
+      out.writeString(scheduledDurationTime);
+    }
+
+    @Override
+    void readFields(DlnaObjectCodec.Input in) {
+      super.readFields(in);
+      channelName = in.readString();
+      channelNumber = in.readString();
+      programTitle = in.readString();
+      seriesTitle = in.readString();
+      programId = in.readString();
+      seriesId = in.readString();
+      channelId = in.readString();
+      episodeNumber = in.readString();
+      episodeSeason = in.readString();
+      rating = in.readString();
+      episodeType = in.readString();
+      genre = in.readString();
+      callSign = in.readString();
+      networkAffiliation = in.readString();
+      description = in.readString();
+      longDescription = in.readString();
+      scheduledStartTime = in.readString();
+      scheduledEndTime = in.readString();
+      scheduledStartMillis = TIME_NOT_PARSED;
+      scheduledEndMillis = TIME_NOT_PARSED;
+      scheduledDurationTime = in.readString();
+    }
 
   }
 
@@ -803,7 +1103,7 @@ public class DlnaObjects {
         JsonObject obj = new JsonObject();
         obj.addProperty("title", src.getTitle());
         obj.addProperty("programTitle", src.getProgramTitle());
-        obj.addProperty("start", String.valueOf(src.getScheduledStartTime().getTime()));
+        obj.addProperty("start", String.valueOf(src.getScheduledStartMillis()));
         obj.addProperty("length", String.valueOf(src.getScheduledDurationTime()));
         obj.addProperty("description", src.getLongDescription());
         obj.addProperty("programIcon", src.getIcon());
@@ -940,6 +1240,32 @@ public class DlnaObjects {
     public void setProgramTitle(String programTitle) {
       this.programTitle = programTitle;
     }
+
+    @Override
+    void writeFields(DlnaObjectCodec.Output out) {
+      super.writeFields(out);
+      out.writeString(genre);
+      out.writeString(longDescription);
+      out.writeString(rating);
+      out.writeString(actor);
+      out.writeString(description);
+      out.writeString(language);
+      out.writeString(channelId);
+      out.writeString(programTitle);
+    }
+
+    @Override
+    void readFields(DlnaObjectCodec.Input in) {
+      super.readFields(in);
+      genre = in.readString();
+      longDescription = in.readString();
+      rating = in.readString();
+      actor = in.readString();
+      description = in.readString();
+      language = in.readString();
+      channelId = in.readString();
+      programTitle = in.readString();
+    }
   }
 
   /**
@@ -985,6 +1311,20 @@ public class DlnaObjects {
       this.callSign = callSign;
     }
 
+    @Override
+    void writeFields(DlnaObjectCodec.Output out) {
+      super.writeFields(out);
+      out.writeString(channelNumber);
+      out.writeString(callSign);
+    }
+
+    @Override
+    void readFields(DlnaObjectCodec.Input in) {
+      super.readFields(in);
+      channelNumber = in.readString();
+      callSign = in.readString();
+    }
+
     /**
      * Gson serializer that adds keys & values expected by JavaScript code.
      */
@@ -1071,24 +1411,16 @@ public class DlnaObjects {
 
     public Date getDateTimeRangeStart() {
       if (dateTimeRange != null) {
-        String[] dates = dateTimeRange.split("/");
-        try {
-          return DATE_FORMAT.parse(dates[0]);
-        } catch (ParseException e) {
-          return null;
-        }
+        long time = DlnaDateParser.parse(dateTimeRange.split("/")[0]);
+        return time != DlnaDateParser.INVALID ? new Date(time) : null;
       }
       return null;
     }
 
     public Date getDateTimeRangeEnd() {
       if (dateTimeRange != null) {
-        String[] dates = dateTimeRange.split("/");
-        try {
-          return DATE_FORMAT.parse(dates[1]);
-        } catch (ParseException e) {
-          return null;
-        }
+        long time = DlnaDateParser.parse(dateTimeRange.split("/")[1]);
+        return time != DlnaDateParser.INVALID ? new Date(time) : null;
       }
       return null;
     }
@@ -1100,6 +1432,20 @@ public class DlnaObjects {
     public void setChannelId(String channelId) {
       this.channelId = channelId;
     }
+
+    @Override
+    void writeFields(DlnaObjectCodec.Output out) {
+      super.writeFields(out);
+      out.writeString(channelId);
+      out.writeString(dateTimeRange);
+    }
+
+    @Override
+    void readFields(DlnaObjectCodec.Input in) {
+      super.readFields(in);
+      channelId = in.readString();
+      dateTimeRange = in.readString();
+    }
   }
 }
 
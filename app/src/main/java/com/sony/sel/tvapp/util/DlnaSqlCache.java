@@ -1,12 +1,11 @@
 package com.sony.sel.tvapp.util;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
-import android.os.AsyncTask;
+import android.database.sqlite.SQLiteStatement;
 import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -20,22 +19,40 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * DLNA cache backed by an SQLite database.
+ * <p/>
+ * The database uses write-ahead logging, so queries on other threads run concurrently with writes.
+ * All writes go through a single writer thread, which coalesces every write pending when it runs into one transaction.
+ * The writer also runs {@link DlnaSqlCompactor} when the cache is opened and at most hourly after writes.
  */
 public class DlnaSqlCache extends SQLiteOpenHelper implements DlnaCache {
 
   public static final String TAG = DlnaSqlCache.class.getSimpleName();
 
   private static final String DATABASE_NAME = "dlnacache.db";
-  public static final int DATABASE_VERSION = 7;
+  public static final int DATABASE_VERSION = 11;
 
-  private final String CREATE_DLNA_OBJECTS_TABLE = "CREATE TABLE `DLNAObjects` (\n" +
+  /**
+   * Objects are stored in the Data column using {@link DlnaObjectCodec}.
+   * The JSON column holds the legacy Gson encoding and is cleared by the version 9 upgrade.
+   * Icon, ProgramTitle & Rating are promoted from the encoded object so {@link VideoProgramView}s can be built without decoding it.
+   */
+  static final String CREATE_DLNA_OBJECTS_TABLE = "CREATE TABLE `DLNAObjects` (\n" +
       "\t`UDN`\tTEXT,\n" +
       "\t`ParentID`\tTEXT,\n" +
       "\t`ID`\tTEXT,\n" +
@@ -46,35 +63,138 @@ public class DlnaSqlCache extends SQLiteOpenHelper implements DlnaCache {
       "\t`ScheduledStartTime`\tINTEGER,\n" +
       "\t`ScheduledEndTime`\tINTEGER,\n" +
       "\t`ChannelID`\tSTRING,\n" +
+      "\t`Data`\tBLOB,\n" +
+      "\t`Icon`\tTEXT,\n" +
+      "\t`ProgramTitle`\tTEXT,\n" +
+      "\t`Rating`\tTEXT,\n" +
       "\tPRIMARY KEY(UDN,ParentID,ID)\n" +
-      "); \n" +
-      "CREATE INDEX DLNAObjects_Index ON DLNAObjects(ChannelID,ScheduledStartTime,ScheduledEndTime);";
+      ");";
+
+  static final String CREATE_DLNA_OBJECTS_INDEX = "CREATE INDEX DLNAObjects_Index ON DLNAObjects(ChannelID,ScheduledStartTime,ScheduledEndTime);";
+
+  /**
+   * Interval index for EPG programs. Each program has one row for every time slot it overlaps,
+   * so an overlap query only reads the slots in the requested range instead of every older program.
+   * First = 1 marks the row for the program's starting slot and is used to return each program once.
+   */
+  static final String CREATE_EPG_SLOTS_TABLE = "CREATE TABLE `EpgSlots` (\n" +
+      "\t`UDN`\tTEXT,\n" +
+      "\t`ChannelID`\tTEXT,\n" +
+      "\t`Slot`\tINTEGER,\n" +
+      "\t`First`\tINTEGER,\n" +
+      "\t`ParentID`\tTEXT,\n" +
+      "\t`ID`\tTEXT,\n" +
+      "\tPRIMARY KEY(UDN,ChannelID,Slot,ParentID,ID)\n" +
+      ");";
+
+  static final String CREATE_EPG_SLOTS_SLOT_INDEX = "CREATE INDEX EpgSlots_Slot_Index ON EpgSlots(UDN,Slot);";
+
+  static final String CREATE_EPG_SLOTS_PARENT_INDEX = "CREATE INDEX EpgSlots_Parent_Index ON EpgSlots(UDN,ParentID);";
+
+  /**
+   * Cached parents with their size, latest program end time (null if not EPG) and last access time,
+   * used by {@link DlnaSqlCompactor} to choose parents to evict.
+   */
+  static final String CREATE_CACHE_PARENTS_TABLE = "CREATE TABLE `CacheParents` (\n" +
+      "\t`UDN`\tTEXT,\n" +
+      "\t`ParentID`\tTEXT,\n" +
+      "\t`Rows`\tINTEGER,\n" +
+      "\t`Bytes`\tINTEGER,\n" +
+      "\t`EndTime`\tINTEGER,\n" +
+      "\t`LastAccess`\tINTEGER,\n" +
+      "\tPRIMARY KEY(UDN,ParentID)\n" +
+      ");";
+
+  /// Width of an EPG time slot
+  static final long EPG_SLOT_MS = 60 * 60 * 1000;
+
+  /// Minimum time between compactions after writes
+  private static final long COMPACTION_INTERVAL_MS = 60 * 60 * 1000;
+
+  static final String DELETE_CHILDREN = "DELETE FROM DLNAObjects WHERE UDN = ? AND ParentID = ?";
+
+  static final String DELETE_SLOTS = "DELETE FROM EpgSlots WHERE UDN = ? AND ParentID = ?";
+
+  private static final String INSERT_PARENT = "INSERT OR REPLACE INTO CacheParents " +
+      "(UDN, ParentID, Rows, Bytes, EndTime, LastAccess) " +
+      "VALUES (?, ?, ?, ?, ?, ?)";
+
+  static final String INSERT_SLOT = "INSERT OR IGNORE INTO EpgSlots " +
+      "(UDN, ChannelID, Slot, First, ParentID, ID) " +
+      "VALUES (?, ?, ?, ?, ?, ?)";
+
+  // INSERT OR IGNORE keeps the first-wins behavior of SQLiteDatabase.insert() for duplicate IDs
+  private static final String INSERT_CHILD = "INSERT OR IGNORE INTO DLNAObjects " +
+      "(UDN, ParentID, ID, Title, UPNPClass, Data, ChildIndex, ScheduledStartTime, ScheduledEndTime, ChannelID, Icon, ProgramTitle, Rating) " +
+      "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
 
   SQLiteDatabase db;
+  DlnaSqlQueries queries;
+  DlnaSqlCompactor compactor;
   Map<String, SaveToCacheTask> cachingTasks = new HashMap<>();
 
+  /// Writes waiting for the writer thread. Guarded by cachingTasks.
+  private final List<SaveToCacheTask> pendingTasks = new ArrayList<>();
+
+  /// Single thread for all cache writes
+  private final ExecutorService writer = Executors.newSingleThreadExecutor();
+
+  /// True once the cache is closed and the writer no longer accepts writes. Guarded by cachingTasks.
+  private boolean closed;
+
+  private final Runnable writePending = new Runnable() {
+    @Override
+    public void run() {
+      writePending();
+    }
+  };
+
+  private final Runnable compact = new Runnable() {
+    @Override
+    public void run() {
+      compact();
+    }
+  };
+
+  /// Time of the last compaction. Only used on the writer thread.
+  private long lastCompaction;
+
   DlnaSqlCache(Context context) {
-    super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    this(context, DATABASE_NAME);
+  }
+
+  /**
+   * Create a cache backed by a named database file. Used by tests & benchmarks to avoid touching the live cache.
+   */
+  DlnaSqlCache(Context context, String databaseName) {
+    super(context, databaseName, null, DATABASE_VERSION);
+    setWriteAheadLoggingEnabled(true);
     db = getWritableDatabase();
+    queries = new DlnaSqlQueries(db);
+    compactor = new DlnaSqlCompactor(db);
+    writer.execute(compact);
   }
 
 
   @Nullable
   @Override
   public <T extends DlnaObject> List<T> getChildren(String udn, String parentId) {
-    waitForCache(udn, parentId);
+    List<T> pending = null;
+    synchronized (cachingTasks) {
+      SaveToCacheTask task = cachingTasks.get(udn + "/" + parentId);
+      if (task != null) {
+        // children are still waiting to be written, copy them while addAll() can't replace them
+        pending = new ArrayList<>((List<T>) task.parents.get(parentId));
+      }
+    }
+    if (pending != null) {
+      return pending.size() > 0 ? pending : null;
+    }
     // query the cache
-    Cursor cursor = db.query(
-        "DLNAObjects",
-        new String[]{"UPNPClass", "JSON"},
-        "UDN = '" + udn + "' AND ParentID = '" + parentId + "'",
-        null,
-        null,
-        null,
-        "ChildIndex"
-    );
+    Cursor cursor = queries.getChildren(udn, parentId);
     try {
       if (cursor.getCount() > 0) {
+        compactor.recordAccess(udn, parentId);
         return buildResults(cursor);
       } else {
         return null;
@@ -85,46 +205,192 @@ public class DlnaSqlCache extends SQLiteOpenHelper implements DlnaCache {
   }
 
   <T extends DlnaObject> List<T> buildResults(Cursor cursor) {
-    Gson gson = new Gson();
-    List<DlnaObject> results = new ArrayList<>();
+    List<DlnaObject> results = new ArrayList<>(cursor.getCount());
+    int classColumn = cursor.getColumnIndex("UPNPClass");
+    int dataColumn = cursor.getColumnIndex("Data");
     for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
-      String upnpClass = cursor.getString(cursor.getColumnIndex("UPNPClass"));
-      String json = cursor.getString(cursor.getColumnIndex("JSON"));
-      Class<? extends DlnaObject> clazz = DlnaObjects.DlnaClass.classOf(upnpClass);
-      DlnaObject item = gson.fromJson(json, clazz);
+      DlnaObject item = DlnaObjectCodec.decode(cursor.getString(classColumn), cursor.getBlob(dataColumn));
       results.add(item);
     }
     return (List<T>) results;
   }
 
+  /**
+   * Decode rows from a cursor and deliver them to a consumer in pages.
+   * The cursor still runs the whole query and counts its rows when it fills its first CursorWindow (about 2MB of raw rows),
+   * but only one window of raw rows and one page of decoded objects are held at a time, instead of every decoded object.
+   *
+   * @return Number of objects delivered.
+   */
+  <T extends DlnaObject> int streamResults(Cursor cursor, int pageSize, PageConsumer<T> consumer) {
+    if (pageSize <= 0) {
+      throw new IllegalArgumentException("Page size must be positive.");
+    }
+    int classColumn = cursor.getColumnIndex("UPNPClass");
+    int dataColumn = cursor.getColumnIndex("Data");
+    int delivered = 0;
+    List<T> page = new ArrayList<>(pageSize);
+    while (cursor.moveToNext()) {
+      T item = DlnaObjectCodec.decode(cursor.getString(classColumn), cursor.getBlob(dataColumn));
+      page.add(item);
+      if (page.size() == pageSize) {
+        delivered += page.size();
+        if (!consumer.onPage(page)) {
+          return delivered;
+        }
+        page = new ArrayList<>(pageSize);
+      }
+    }
+    if (page.size() > 0) {
+      delivered += page.size();
+      consumer.onPage(page);
+    }
+    return delivered;
+  }
+
+  /**
+   * Build program views from a cursor with the columns of {@link DlnaSqlQueries#getEpgViews}.
+   * Rows that are not EPG programs are skipped.
+   */
+  List<VideoProgramView> buildViews(String udn, Cursor cursor) {
+    List<VideoProgramView> results = new ArrayList<>(cursor.getCount());
+    int idColumn = cursor.getColumnIndex("ID");
+    int titleColumn = cursor.getColumnIndex("Title");
+    int programTitleColumn = cursor.getColumnIndex("ProgramTitle");
+    int channelColumn = cursor.getColumnIndex("ChannelID");
+    int iconColumn = cursor.getColumnIndex("Icon");
+    int ratingColumn = cursor.getColumnIndex("Rating");
+    int startColumn = cursor.getColumnIndex("ScheduledStartTime");
+    int endColumn = cursor.getColumnIndex("ScheduledEndTime");
+    int classColumn = cursor.getColumnIndex("UPNPClass");
+    for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+      String upnpClass = cursor.getString(classColumn);
+      if (!VideoProgram.class.isAssignableFrom(DlnaObjects.DlnaClass.classOf(upnpClass))) {
+        continue;
+      }
+      results.add(new VideoProgramView(
+          this,
+          udn,
+          cursor.getString(idColumn),
+          cursor.getString(titleColumn),
+          cursor.getString(programTitleColumn),
+          cursor.getString(channelColumn),
+          cursor.getString(iconColumn),
+          cursor.getString(ratingColumn),
+          cursor.getLong(startColumn),
+          cursor.getLong(endColumn)
+      ));
+    }
+    return results;
+  }
+
   @Override
   public void add(final String udn, final String parentID, final List<DlnaObject> children) {
-    String key = udn + "/" + parentID;
+    addAll(udn, Collections.singletonMap(parentID, children));
+  }
+
+  @Override
+  public void addAll(@NonNull String udn, @NonNull Map<String, List<DlnaObject>> parents) {
+    Map<String, List<DlnaObject>> pending = new LinkedHashMap<>();
+    SaveToCacheTask task;
     synchronized (cachingTasks) {
-      if (cachingTasks.containsKey(key)) {
-        // already in process of caching
+      if (closed) {
+        Log.w(TAG, String.format("Cache is closed, %d parents not written.", parents.size()));
         return;
       }
+      for (Map.Entry<String, List<DlnaObject>> entry : parents.entrySet()) {
+        SaveToCacheTask queued = cachingTasks.get(udn + "/" + entry.getKey());
+        if (queued != null && !queued.started) {
+          // the newest children replace those of a write that hasn't started yet
+          queued.parents.put(entry.getKey(), entry.getValue());
+        } else {
+          // a write in progress is followed by a new write with the newest children
+          pending.put(entry.getKey(), entry.getValue());
+        }
+      }
+      if (pending.isEmpty()) {
+        return;
+      }
+      task = new SaveToCacheTask(udn, pending);
+      for (String parentID : pending.keySet()) {
+        cachingTasks.put(udn + "/" + parentID, task);
+      }
+      pendingTasks.add(task);
+      if (pendingTasks.size() == 1) {
+        // otherwise the writer is already scheduled and will pick this task up.
+        // scheduled under the lock, so close() can't shut the writer down in between
+        writer.execute(writePending);
+      }
     }
-    SaveToCacheTask task = new SaveToCacheTask(udn, parentID, children);
+  }
+
+  /**
+   * Write all pending tasks in one transaction. Runs on the writer thread.
+   */
+  private void writePending() {
+    List<SaveToCacheTask> tasks;
     synchronized (cachingTasks) {
-      cachingTasks.put(udn + "/" + parentID, task);
+      tasks = new ArrayList<>(pendingTasks);
+      pendingTasks.clear();
+      for (SaveToCacheTask task : tasks) {
+        // later writes of the same parents queue a new task
+        task.started = true;
+      }
+    }
+    if (tasks.isEmpty()) {
+      return;
+    }
+    int[] taskRows = new int[tasks.size()];
+    int parents = 0;
+    RuntimeException error = null;
+    try {
+      // save() transactions nest inside this one
+      db.beginTransaction();
+      try {
+        for (int i = 0; i < tasks.size(); i++) {
+          SaveToCacheTask task = tasks.get(i);
+          taskRows[i] = save(task.udn, task.parents);
+          parents += task.parents.size();
+        }
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+      }
+      int rows = 0;
+      for (int taskRow : taskRows) {
+        rows += taskRow;
+      }
+      Log.d(TAG, String.format("%d items added to cache for %d parents in %d writes.", rows, parents, tasks.size()));
+    } catch (RuntimeException e) {
+      // any failure rolls back the whole transaction, so every task fails with it
+      Log.e(TAG, "Error adding children to cache. writes = " + tasks.size() + " error = " + e);
+      error = e;
+    } finally {
+      for (int i = 0; i < tasks.size(); i++) {
+        tasks.get(i).complete(error == null ? taskRows[i] : 0, error);
+      }
+    }
+    if (System.currentTimeMillis() - lastCompaction >= COMPACTION_INTERVAL_MS) {
+      compact();
+    }
+  }
+
+  /**
+   * Apply the retention policy. Runs on the writer thread.
+   */
+  private void compact() {
+    lastCompaction = System.currentTimeMillis();
+    try {
+      compactor.compact(lastCompaction);
+    } catch (SQLiteException e) {
+      Log.e(TAG, "Error compacting cache. error = " + e);
     }
-    task.executeOnExecutor(AsyncTask.SERIAL_EXECUTOR);
   }
 
   @Override
   public <T extends DlnaObject> List<T> search(String udn, String parentId, String searchText) {
     // query the cache
-    Cursor cursor = db.query(
-        "DLNAObjects",
-        new String[]{"UPNPClass", "JSON"},
-        "UDN = '" + udn + "' AND ParentID LIKE '" + parentId + "%' AND Title LIKE '%" + searchText.replaceAll("[^a-zA-Z0-9]","%") + "%'",
-        null,
-        null,
-        null,
-        null
-    );
+    Cursor cursor = queries.search(udn, parentId, searchText);
     try {
       if (cursor.getCount() > 0) {
         return buildResults(cursor);
@@ -136,6 +402,16 @@ public class DlnaSqlCache extends SQLiteOpenHelper implements DlnaCache {
     }
   }
 
+  @Override
+  public <T extends DlnaObject> int search(@NonNull String udn, @NonNull String parentId, @NonNull String searchText, int pageSize, @NonNull PageConsumer<T> consumer) {
+    Cursor cursor = queries.search(udn, parentId, searchText);
+    try {
+      return streamResults(cursor, pageSize, consumer);
+    } finally {
+      cursor.close();
+    }
+  }
+
   @Override
   public List<VideoProgram> searchEpg(String udn, final List<String> channels, Date startDateTime, Date endDateTime) {
     DateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
@@ -157,35 +433,57 @@ public class DlnaSqlCache extends SQLiteOpenHelper implements DlnaCache {
   }
 
   @Override
-  public int countEpgItems(@NonNull String udn, @NonNull List<String> channels, @NonNull Date startDateTime, @NonNull Date endDateTime) {
+  public int searchEpg(@NonNull String udn, @Nullable List<String> channels, @NonNull Date startDateTime, @NonNull Date endDateTime, int pageSize, @NonNull PageConsumer<VideoProgram> consumer) {
+    long time = System.currentTimeMillis();
     Cursor cursor = getEpgItems(udn, channels, startDateTime, endDateTime);
     try {
-      return cursor.getCount();
+      int delivered = streamResults(cursor, pageSize, consumer);
+      Log.d(TAG, String.format("Search EPG cache. %d programs streamed in %dms.", delivered, System.currentTimeMillis() - time));
+      return delivered;
+    } finally {
+      cursor.close();
+    }
+  }
+
+  @Override
+  public List<VideoProgramView> searchEpgViews(@NonNull String udn, @Nullable List<String> channels, @NonNull Date startDateTime, @NonNull Date endDateTime) {
+    long time = System.currentTimeMillis();
+    Cursor cursor = queries.getEpgViews(udn, channels, startDateTime.getTime(), endDateTime.getTime());
+    try {
+      List<VideoProgramView> results = buildViews(udn, cursor);
+      Log.d(TAG, String.format("Search EPG cache views. %d results in %dms.", results.size(), System.currentTimeMillis() - time));
+      return results;
+    } finally {
+      cursor.close();
+    }
+  }
+
+  @Override
+  public List<VideoProgramView> searchViews(@NonNull String udn, @NonNull String parentId, @NonNull String searchText) {
+    Cursor cursor = queries.searchViews(udn, parentId, searchText);
+    try {
+      return buildViews(udn, cursor);
     } finally {
       cursor.close();
     }
   }
 
+  @Override
+  public int countEpgItems(@NonNull String udn, @NonNull List<String> channels, @NonNull Date startDateTime, @NonNull Date endDateTime) {
+    return queries.countEpgItems(udn, channels, startDateTime.getTime(), endDateTime.getTime());
+  }
+
   @Nullable
   @Override
   public <T extends DlnaObject> T getItemById(@NonNull String udn, @NonNull String id) {
     Cursor cursor = null;
     try {
-      cursor = db.query(
-          "DLNAObjects",
-          new String[]{"UPNPClass", "JSON"},
-          "UDN = '" + udn + "' AND ID = '" + id + "'",
-          null,
-          null,
-          null,
-          null
-      );
+      cursor = queries.getItemById(udn, id);
       if (cursor.getCount() > 0) {
         cursor.moveToFirst();
         String upnpClass = cursor.getString(cursor.getColumnIndex("UPNPClass"));
-        String json = cursor.getString(cursor.getColumnIndex("JSON"));
-        Class<? extends DlnaObject> clazz = DlnaObjects.DlnaClass.classOf(upnpClass);
-        return (T) new Gson().fromJson(json, clazz);
+        byte[] data = cursor.getBlob(cursor.getColumnIndex("Data"));
+        return DlnaObjectCodec.decode(upnpClass, data);
       } else {
         return null;
       }
@@ -197,129 +495,394 @@ public class DlnaSqlCache extends SQLiteOpenHelper implements DlnaCache {
   }
 
   private Cursor getEpgItems(@NonNull String udn, @Nullable List<String> channels, @NonNull Date startDateTime, @NonNull Date endDateTime) {
-    // build channel list string for sql statement
-    StringBuilder channelsString = new StringBuilder();
-    if (channels != null) {
-      for (String channel : channels) {
-        if (channelsString.length() > 0) {
-          channelsString.append(", ");
-        }
-        channelsString.append("'" + channel + "'");
-      }
-    }
-
     DateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
     format.setTimeZone(TimeZone.getTimeZone("UTC"));
     Log.d(TAG, "Find EPG items from " + format.format(startDateTime) + " to " + format.format(endDateTime) + (channels != null ? " in channels " + new Gson().toJson(channels) : "") + ".");
+    return queries.getEpgItems(udn, channels, startDateTime.getTime(), endDateTime.getTime());
+  }
 
-    // build query
-    return db.query(
-        "DLNAObjects",
-        new String[]{"UPNPClass", "JSON"},
-        "UDN = '" + udn + "'"
-            + (channels != null ? " AND ChannelID IN (" + channelsString.toString() + ")" : "")
-            + " AND ScheduledStartTime <= " + endDateTime.getTime()
-            + " AND ScheduledEndTime > " + startDateTime.getTime(),
-        null,
-        null,
-        null,
-        "ChannelID, ScheduledStartTime"
-    );
+  /**
+   * Return the EPG time slot containing a time.
+   */
+  static long getEpgSlot(long time) {
+    return time / EPG_SLOT_MS;
+  }
+
+  @Override
+  public void onConfigure(SQLiteDatabase db) {
+    // takes effect when the database is created, or at the next VACUUM of an existing database
+    db.execSQL("PRAGMA auto_vacuum = INCREMENTAL;");
   }
 
   @Override
   public void onCreate(SQLiteDatabase db) {
+    // execSQL() only runs a single statement, so each one is executed separately
     db.execSQL(CREATE_DLNA_OBJECTS_TABLE);
+    db.execSQL(CREATE_DLNA_OBJECTS_INDEX);
+    db.execSQL(CREATE_EPG_SLOTS_TABLE);
+    db.execSQL(CREATE_EPG_SLOTS_SLOT_INDEX);
+    db.execSQL(CREATE_EPG_SLOTS_PARENT_INDEX);
+    db.execSQL(CREATE_CACHE_PARENTS_TABLE);
   }
 
   @Override
   public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-    db.execSQL("DROP TABLE DLNAObjects;");
-    onCreate(db);
+    if (!DlnaSqlMigrations.migrate(db, oldVersion, newVersion)) {
+      Log.w(TAG, "No migration from cache version " + oldVersion + ", recreating.");
+      dropTables(db);
+      onCreate(db);
+    }
   }
 
-  @Override
-  public void reset() {
-    this.onUpgrade(db, db.getVersion(), DATABASE_VERSION);
+  private void dropTables(SQLiteDatabase db) {
+    db.execSQL("DROP TABLE IF EXISTS CacheParents;");
+    db.execSQL("DROP TABLE IF EXISTS EpgSlots;");
+    db.execSQL("DROP TABLE IF EXISTS DLNAObjects;");
+  }
+
+  /**
+   * Bind Icon, ProgramTitle & Rating for an object, starting at the given index.
+   */
+  static void bindPromotedColumns(SQLiteStatement statement, int index, DlnaObject object) {
+    String programTitle = null;
+    String rating = null;
+    if (object instanceof DlnaObjects.EpgItem) {
+      programTitle = ((DlnaObjects.EpgItem) object).getProgramTitle();
+      rating = ((DlnaObjects.EpgItem) object).getRating();
+    } else if (object instanceof DlnaObjects.VideoItem) {
+      programTitle = ((DlnaObjects.VideoItem) object).getProgramTitle();
+      rating = ((DlnaObjects.VideoItem) object).getRating();
+    }
+    bindStringOrNull(statement, index, object.getIcon());
+    bindStringOrNull(statement, index + 1, programTitle);
+    bindStringOrNull(statement, index + 2, rating);
   }
 
+  @Override
+  public synchronized void close() {
+    // finish pending writes before closing the database
+    synchronized (cachingTasks) {
+      closed = true;
+      writer.shutdown();
+    }
+    // never close the database under a transaction in progress, however long it takes
+    boolean interrupted = false;
+    while (!writer.isTerminated()) {
+      try {
+        if (!writer.awaitTermination(10, TimeUnit.SECONDS)) {
+          Log.w(TAG, "Still waiting for the writer to finish before closing.");
+        }
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    queries.close();
+    super.close();
+  }
 
-  private void waitForCache(String udn, String parentId) {
-    String key = udn + "/" + parentId;
-    if (cachingTasks.containsKey(key)) {
-      SaveToCacheTask task = cachingTasks.get(key);
-      synchronized (task) {
-        Log.d(TAG, "Waiting for caching task to complete.");
+  /**
+   * Drop and recreate all tables on the writer thread, after any write in progress.
+   * Writes that haven't started yet are discarded.
+   */
+  @Override
+  public void reset() {
+    List<SaveToCacheTask> discarded;
+    Future<?> reset;
+    synchronized (cachingTasks) {
+      if (closed) {
+        Log.w(TAG, "Cache is closed, not reset.");
+        return;
+      }
+      discarded = new ArrayList<>(pendingTasks);
+      pendingTasks.clear();
+      for (SaveToCacheTask task : discarded) {
+        // later writes of the same parents queue a new task
+        task.started = true;
+      }
+      reset = writer.submit(new Runnable() {
+        @Override
+        public void run() {
+          dropTables(db);
+          onCreate(db);
+        }
+      });
+    }
+    for (SaveToCacheTask task : discarded) {
+      task.complete(0, null);
+    }
+    Log.d(TAG, String.format("Resetting cache, %d pending writes discarded.", discarded.size()));
+    boolean interrupted = false;
+    try {
+      while (true) {
         try {
-          task.wait();
-          Log.d(TAG, "Caching task completed, continuing.");
+          reset.get();
+          break;
         } catch (InterruptedException e) {
-          e.printStackTrace();
+          interrupted = true;
         }
       }
+    } catch (ExecutionException e) {
+      throw new RuntimeException("Error resetting cache.", e.getCause());
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
     }
   }
 
-  private class SaveToCacheTask extends AsyncTask<Void, Void, Void> {
 
-    private final String udn;
-    private final String parentID;
-    private final List<DlnaObject> children;
+  /**
+   * Return true if any write is waiting for or being written by the writer thread.
+   */
+  boolean hasPendingWrites() {
+    synchronized (cachingTasks) {
+      return !cachingTasks.isEmpty();
+    }
+  }
 
-    public SaveToCacheTask(String udn, String parentID, List<DlnaObject> children) {
-      this.udn = udn;
-      this.parentID = parentID;
-      this.children = children;
+  /**
+   * Return the write in progress for a parent, if any.
+   *
+   * @param udn      Server UDN.
+   * @param parentId Parent ID.
+   * @return Future that completes with the number of rows written by the batch including the parent,
+   * or null if nothing is pending for the parent.
+   */
+  @Nullable
+  SaveToCacheTask getPendingWrite(String udn, String parentId) {
+    synchronized (cachingTasks) {
+      return cachingTasks.get(udn + "/" + parentId);
     }
+  }
 
-    @Override
-    protected Void doInBackground(Void... params) {
-      try {
-        // delete any existing cached children at this parent
-        int deleted = db.delete(
-            "DLNAObjects",
-            "UDN = ? AND ParentID = ?",
-            new String[]{udn, parentID}
-        );
+  /**
+   * Wait for any pending write of a parent's children to be committed to the database.
+   *
+   * @param udn      Server UDN.
+   * @param parentId Parent ID.
+   * @param timeout  Maximum time to wait.
+   * @param unit     Unit of the timeout.
+   * @return True if nothing is pending or the write completed in time, false on timeout or interruption.
+   */
+  boolean waitForCache(String udn, String parentId, long timeout, TimeUnit unit) {
+    SaveToCacheTask task = getPendingWrite(udn, parentId);
+    if (task == null) {
+      return true;
+    }
+    Log.d(TAG, "Waiting for caching task to complete.");
+    try {
+      task.get(timeout, unit);
+      Log.d(TAG, "Caching task completed, continuing.");
+      return true;
+    } catch (TimeoutException e) {
+      Log.w(TAG, "Timed out waiting for caching task.");
+      return false;
+    } catch (ExecutionException e) {
+      // write failed, nothing more will be written
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Write children for one or more parents to the database in a single transaction.
+   * Existing children of each parent are replaced. One compiled INSERT statement is reused for every row.
+   *
+   * @param udn     Server UDN.
+   * @param parents Map of parent ID to child objects.
+   * @return Number of rows written.
+   */
+  int save(@NonNull String udn, @NonNull Map<String, List<DlnaObject>> parents) {
+    int rows = 0;
+    SQLiteStatement deleteSlots = db.compileStatement(DELETE_SLOTS);
+    SQLiteStatement delete = db.compileStatement(DELETE_CHILDREN);
+    SQLiteStatement insert = db.compileStatement(INSERT_CHILD);
+    SQLiteStatement insertSlot = db.compileStatement(INSERT_SLOT);
+    SQLiteStatement insertParent = db.compileStatement(INSERT_PARENT);
+    long now = System.currentTimeMillis();
+    db.beginTransaction();
+    try {
+      for (Map.Entry<String, List<DlnaObject>> entry : parents.entrySet()) {
+        String parentID = entry.getKey();
+        // delete any existing cached children & slots at this parent
+        deleteSlots.bindString(1, udn);
+        deleteSlots.bindString(2, parentID);
+        deleteSlots.executeUpdateDelete();
+        delete.bindString(1, udn);
+        delete.bindString(2, parentID);
+        int deleted = delete.executeUpdateDelete();
         if (deleted > 0) {
           Log.d(TAG, String.format("%d items deleted in cache before update.", deleted));
         }
         // insert new child records
-        Gson gson = new Gson();
         int childIndex = 0;
-        synchronized (this) {
-          for (DlnaObject child : children) {
-            ContentValues values = new ContentValues();
-            values.put("UDN", udn);
-            values.put("ParentID", parentID);
-            values.put("ID", child.getId());
-            values.put("Title", child.getTitle());
-            values.put("UPNPClass", child.getUpnpClass());
-            values.put("JSON", gson.toJson(child));
-            values.put("ChildIndex", childIndex++);
-            if (child instanceof VideoProgram) {
-              // save EPG-specific fields
-              VideoProgram videoProgram = (VideoProgram) child;
-              values.put("ScheduledStartTime", videoProgram.getScheduledStartTime().getTime());
-              values.put("ScheduledEndTime", videoProgram.getScheduledEndTime().getTime());
-              values.put("ChannelID", videoProgram.getChannelId());
+        long bytes = 0;
+        Long endTime = null;
+        for (DlnaObject child : entry.getValue()) {
+          insert.clearBindings();
+          insert.bindString(1, udn);
+          insert.bindString(2, parentID);
+          bindStringOrNull(insert, 3, child.getId());
+          bindStringOrNull(insert, 4, child.getTitle());
+          bindStringOrNull(insert, 5, child.getUpnpClass());
+          byte[] data = DlnaObjectCodec.encode(child);
+          bytes += data.length;
+          insert.bindBlob(6, data);
+          insert.bindLong(7, childIndex++);
+          VideoProgram videoProgram = null;
+          boolean scheduled = false;
+          if (child instanceof VideoProgram) {
+            // save EPG-specific fields
+            videoProgram = (VideoProgram) child;
+            long start = videoProgram.getScheduledStartMillis();
+            long end = videoProgram.getScheduledEndMillis();
+            // programs without valid times keep null times and get no slots
+            scheduled = start != VideoProgram.NO_TIME && end != VideoProgram.NO_TIME;
+            if (scheduled) {
+              insert.bindLong(8, start);
+              insert.bindLong(9, end);
+              endTime = Math.max(endTime != null ? endTime : Long.MIN_VALUE, end);
             }
-            db.insert(
-                "DLNAObjects",
-                null,
-                values
-            );
+            bindStringOrNull(insert, 10, videoProgram.getChannelId());
+          }
+          bindPromotedColumns(insert, 11, child);
+          insert.executeInsert();
+          rows++;
+          if (scheduled && videoProgram.getId() != null && videoProgram.getChannelId() != null) {
+            insertSlots(insertSlot, udn, videoProgram.getChannelId(), parentID, videoProgram.getId(),
+                videoProgram.getScheduledStartMillis(), videoProgram.getScheduledEndMillis());
           }
-          notifyAll();
         }
-        Log.d(TAG, String.format("%d items added to cache.", children.size()));
-      } catch (SQLiteException error) {
-        Log.e(TAG, "Error adding children to cache. udn = " + udn + " parent = " + parentID + " error = " + error);
+        // track the parent for retention
+        insertParent.bindString(1, udn);
+        insertParent.bindString(2, parentID);
+        insertParent.bindLong(3, entry.getValue().size());
+        insertParent.bindLong(4, bytes);
+        if (endTime != null) {
+          insertParent.bindLong(5, endTime);
+        } else {
+          insertParent.bindNull(5);
+        }
+        insertParent.bindLong(6, now);
+        insertParent.executeInsert();
       }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+      deleteSlots.close();
+      delete.close();
+      insert.close();
+      insertSlot.close();
+      insertParent.close();
+    }
+    return rows;
+  }
+
+  /**
+   * Add interval index rows for every time slot a program overlaps.
+   */
+  static void insertSlots(SQLiteStatement insertSlot, String udn, String channelId, String parentID, String id, long startTime, long endTime) {
+    long firstSlot = getEpgSlot(startTime);
+    // end time is exclusive
+    long lastSlot = Math.max(firstSlot, getEpgSlot(endTime - 1));
+    for (long slot = firstSlot; slot <= lastSlot; slot++) {
+      insertSlot.bindString(1, udn);
+      insertSlot.bindString(2, channelId);
+      insertSlot.bindLong(3, slot);
+      insertSlot.bindLong(4, slot == firstSlot ? 1 : 0);
+      insertSlot.bindString(5, parentID);
+      insertSlot.bindString(6, id);
+      insertSlot.executeInsert();
+    }
+  }
+
+  static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+    if (value != null) {
+      statement.bindString(index, value);
+    } else {
+      statement.bindNull(index);
+    }
+  }
+
+  /**
+   * A write of children for one or more parents, waiting on or being written by the writer thread.
+   * Completes with the number of rows written once the write is committed, or with the error that rolled it back.
+   */
+  class SaveToCacheTask implements Future<Integer> {
+
+    private final String udn;
+    /// Children by parent. Replaced by newer writes until the task is started, guarded by cachingTasks.
+    private final Map<String, List<DlnaObject>> parents;
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    /// True once the writer has taken the task. Guarded by cachingTasks.
+    boolean started;
+    private volatile int rows;
+    private volatile RuntimeException error;
+
+    SaveToCacheTask(String udn, Map<String, List<DlnaObject>> parents) {
+      this.udn = udn;
+      this.parents = parents;
+    }
+
+    /**
+     * Remove this task from the caching tasks and release waiting readers.
+     */
+    void complete(int rows, @Nullable RuntimeException error) {
+      this.rows = rows;
+      this.error = error;
       synchronized (cachingTasks) {
-        cachingTasks.remove(udn + "/" + parentID);
+        for (String parentID : parents.keySet()) {
+          String key = udn + "/" + parentID;
+          // a newer write of the parent may already be queued
+          if (cachingTasks.get(key) == this) {
+            cachingTasks.remove(key);
+          }
+        }
+      }
+      done.countDown();
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      // writes can't be cancelled once queued
+      return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+
+    @Override
+    public boolean isDone() {
+      return done.getCount() == 0;
+    }
+
+    @Override
+    public Integer get() throws InterruptedException, ExecutionException {
+      done.await();
+      return getResult();
+    }
+
+    @Override
+    public Integer get(long timeout, @NonNull TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+      if (!done.await(timeout, unit)) {
+        throw new TimeoutException("Caching task not completed in time.");
+      }
+      return getResult();
+    }
+
+    private Integer getResult() throws ExecutionException {
+      if (error != null) {
+        throw new ExecutionException(error);
       }
-      return null;
+      return rows;
     }
   }
 }
@@ -0,0 +1,246 @@
+package com.sony.sel.tvapp.util;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Retention policy and background compaction for {@link DlnaSqlCache}.
+ * <p/>
+ * Every cached parent has a row in the CacheParents table with its child count, encoded size,
+ * latest program end time and last access time. Compaction evicts whole parents, so a parent is
+ * either fully cached or re-fetched from the server:
+ * <ul>
+ * <li>EPG parents whose programs all ended before the retention period are always evicted.</li>
+ * <li>While a server is over its row or byte cap, the least recently used parents without programs
+ * (e.g. VOD containers) are evicted, then the EPG parents furthest in the future.</li>
+ * </ul>
+ * The database is vacuumed when too much of it is free pages.
+ */
+class DlnaSqlCompactor {
+
+  private static final String TAG = DlnaSqlCompactor.class.getSimpleName();
+
+  /// How long past programs are kept after they end
+  static final long RETAIN_PAST_MS = 24 * 60 * 60 * 1000;
+
+  /// Maximum cached rows per server
+  static final int MAX_ROWS = 250000;
+
+  /// Maximum encoded bytes per server
+  static final long MAX_BYTES = 64 * 1024 * 1024;
+
+  /// Fraction of free pages that triggers a vacuum
+  private static final double MAX_FREE_FRACTION = 0.25;
+
+  private static final String DELETE_PARENT = "DELETE FROM CacheParents WHERE UDN = ? AND ParentID = ?";
+
+  private static final String UPDATE_ACCESS = "UPDATE CacheParents SET LastAccess = MAX(LastAccess, ?) WHERE UDN = ? AND ParentID = ?";
+
+  private final SQLiteDatabase db;
+  private final long retainPastMs;
+  private final int maxRows;
+  private final long maxBytes;
+
+  /// Parent access times not yet written, by UDN then parent ID
+  private final Map<String, Map<String, Long>> accessTimes = new HashMap<>();
+
+  DlnaSqlCompactor(@NonNull SQLiteDatabase db) {
+    this(db, RETAIN_PAST_MS, MAX_ROWS, MAX_BYTES);
+  }
+
+  DlnaSqlCompactor(@NonNull SQLiteDatabase db, long retainPastMs, int maxRows, long maxBytes) {
+    this.db = db;
+    this.retainPastMs = retainPastMs;
+    this.maxRows = maxRows;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Record a read of a parent's children. Access times are kept in memory and written at the next compaction,
+   * so reads never write to the database.
+   */
+  void recordAccess(@NonNull String udn, @NonNull String parentId) {
+    synchronized (accessTimes) {
+      Map<String, Long> parents = accessTimes.get(udn);
+      if (parents == null) {
+        parents = new HashMap<>();
+        accessTimes.put(udn, parents);
+      }
+      parents.put(parentId, System.currentTimeMillis());
+    }
+  }
+
+  /**
+   * Apply the retention policy to every server and vacuum if needed. Must run on the cache's writer thread.
+   *
+   * @param now Current time in ms.
+   * @return Number of parents evicted.
+   */
+  int compact(long now) {
+    long time = System.currentTimeMillis();
+    flushAccessTimes();
+    int evicted = 0;
+    for (String udn : getUdns()) {
+      evicted += evict(udn, getExpiredParents(udn, now - retainPastMs));
+      evicted += evict(udn, getOverCapParents(udn));
+    }
+    vacuumIfFragmented();
+    Log.d(TAG, String.format("Cache compacted. %d parents evicted in %dms.", evicted, System.currentTimeMillis() - time));
+    return evicted;
+  }
+
+  private void flushAccessTimes() {
+    Map<String, Map<String, Long>> flush;
+    synchronized (accessTimes) {
+      if (accessTimes.isEmpty()) {
+        return;
+      }
+      flush = new HashMap<>(accessTimes);
+      accessTimes.clear();
+    }
+    SQLiteStatement update = db.compileStatement(UPDATE_ACCESS);
+    db.beginTransaction();
+    try {
+      for (Map.Entry<String, Map<String, Long>> udn : flush.entrySet()) {
+        for (Map.Entry<String, Long> parent : udn.getValue().entrySet()) {
+          update.bindLong(1, parent.getValue());
+          update.bindString(2, udn.getKey());
+          update.bindString(3, parent.getKey());
+          update.executeUpdateDelete();
+        }
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+      update.close();
+    }
+  }
+
+  private List<String> getUdns() {
+    List<String> udns = new ArrayList<>();
+    Cursor cursor = db.rawQuery("SELECT DISTINCT UDN FROM CacheParents", null);
+    try {
+      while (cursor.moveToNext()) {
+        udns.add(cursor.getString(0));
+      }
+    } finally {
+      cursor.close();
+    }
+    return udns;
+  }
+
+  /**
+   * Return EPG parents whose last program ended before a cutoff time.
+   */
+  private List<String> getExpiredParents(String udn, long cutoff) {
+    List<String> parents = new ArrayList<>();
+    Cursor cursor = db.rawQuery("SELECT ParentID FROM CacheParents WHERE UDN = ? AND EndTime < ?",
+        new String[]{udn, String.valueOf(cutoff)});
+    try {
+      while (cursor.moveToNext()) {
+        parents.add(cursor.getString(0));
+      }
+    } finally {
+      cursor.close();
+    }
+    return parents;
+  }
+
+  /**
+   * Return the parents to evict to bring a server under the row & byte caps, in eviction order.
+   */
+  private List<String> getOverCapParents(String udn) {
+    List<String> parents = new ArrayList<>();
+    long rows;
+    long bytes;
+    Cursor cursor = db.rawQuery("SELECT IFNULL(SUM(Rows), 0), IFNULL(SUM(Bytes), 0) FROM CacheParents WHERE UDN = ?", new String[]{udn});
+    try {
+      cursor.moveToFirst();
+      rows = cursor.getLong(0);
+      bytes = cursor.getLong(1);
+    } finally {
+      cursor.close();
+    }
+    if (rows <= maxRows && bytes <= maxBytes) {
+      return parents;
+    }
+    // parents without programs by least recent access, then EPG parents by latest end time
+    cursor = db.rawQuery("SELECT ParentID, Rows, Bytes FROM CacheParents WHERE UDN = ?" +
+        " ORDER BY EndTime IS NOT NULL, CASE WHEN EndTime IS NULL THEN LastAccess ELSE -EndTime END", new String[]{udn});
+    try {
+      while ((rows > maxRows || bytes > maxBytes) && cursor.moveToNext()) {
+        parents.add(cursor.getString(0));
+        rows -= cursor.getLong(1);
+        bytes -= cursor.getLong(2);
+      }
+    } finally {
+      cursor.close();
+    }
+    return parents;
+  }
+
+  /**
+   * Delete parents with their children & slot index rows in one transaction.
+   */
+  private int evict(String udn, List<String> parents) {
+    if (parents.isEmpty()) {
+      return 0;
+    }
+    SQLiteStatement deleteSlots = db.compileStatement(DlnaSqlCache.DELETE_SLOTS);
+    SQLiteStatement deleteChildren = db.compileStatement(DlnaSqlCache.DELETE_CHILDREN);
+    SQLiteStatement deleteParent = db.compileStatement(DELETE_PARENT);
+    db.beginTransaction();
+    try {
+      for (String parentId : parents) {
+        for (SQLiteStatement statement : new SQLiteStatement[]{deleteSlots, deleteChildren, deleteParent}) {
+          statement.bindString(1, udn);
+          statement.bindString(2, parentId);
+          statement.executeUpdateDelete();
+        }
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+      deleteSlots.close();
+      deleteChildren.close();
+      deleteParent.close();
+    }
+    Log.d(TAG, String.format("%d parents evicted for %s.", parents.size(), udn));
+    return parents.size();
+  }
+
+  /**
+   * Reclaim free pages when they exceed a fraction of the database.
+   * Databases created with incremental auto-vacuum are vacuumed incrementally.
+   * Older databases get a full VACUUM, which also switches them to incremental auto-vacuum.
+   */
+  private void vacuumIfFragmented() {
+    long pages = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+    long free = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+    if (pages == 0 || free < pages * MAX_FREE_FRACTION) {
+      return;
+    }
+    long time = System.currentTimeMillis();
+    if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) == 2) {
+      // PRAGMA incremental_vacuum only runs when stepped
+      Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum", null);
+      try {
+        cursor.moveToFirst();
+      } finally {
+        cursor.close();
+      }
+    } else {
+      db.execSQL("VACUUM");
+    }
+    Log.d(TAG, String.format("Vacuumed %d of %d pages in %dms.", free, pages, System.currentTimeMillis() - time));
+  }
+}
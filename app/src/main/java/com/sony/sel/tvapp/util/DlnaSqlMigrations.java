@@ -0,0 +1,282 @@
+package com.sony.sel.tvapp.util;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.sony.sel.tvapp.util.DlnaObjects.DlnaObject;
+
+/**
+ * Versioned schema migrations for {@link DlnaSqlCache}.
+ * <p/>
+ * Each migration upgrades the database in place from one version to the next, so cached data
+ * survives app updates. A migration describes the schema change made at its own version: changing
+ * the schema again needs a new migration and a DATABASE_VERSION bump, never an edit to an old one.
+ * So migrations use their own copies of the SQL, slot width & column bindings of their version,
+ * never the current ones in {@link DlnaSqlCache}.
+ */
+final class DlnaSqlMigrations {
+
+  private static final String TAG = DlnaSqlMigrations.class.getSimpleName();
+
+  /// Oldest version that can be migrated. Older databases are recreated.
+  static final int MIN_VERSION = 7;
+
+  /// Version 8 slot index
+  private static final String V8_CREATE_EPG_SLOTS_TABLE = "CREATE TABLE `EpgSlots` (\n" +
+      "\t`UDN`\tTEXT,\n" +
+      "\t`ChannelID`\tTEXT,\n" +
+      "\t`Slot`\tINTEGER,\n" +
+      "\t`First`\tINTEGER,\n" +
+      "\t`ParentID`\tTEXT,\n" +
+      "\t`ID`\tTEXT,\n" +
+      "\tPRIMARY KEY(UDN,ChannelID,Slot,ParentID,ID)\n" +
+      ");";
+  private static final String V8_CREATE_EPG_SLOTS_SLOT_INDEX = "CREATE INDEX EpgSlots_Slot_Index ON EpgSlots(UDN,Slot);";
+  private static final String V8_CREATE_EPG_SLOTS_PARENT_INDEX = "CREATE INDEX EpgSlots_Parent_Index ON EpgSlots(UDN,ParentID);";
+  private static final String V8_INSERT_SLOT = "INSERT OR IGNORE INTO EpgSlots " +
+      "(UDN, ChannelID, Slot, First, ParentID, ID) " +
+      "VALUES (?, ?, ?, ?, ?, ?)";
+  private static final long V8_EPG_SLOT_MS = 60 * 60 * 1000;
+
+  /// Version 11 parent tracking
+  private static final String V11_CREATE_CACHE_PARENTS_TABLE = "CREATE TABLE `CacheParents` (\n" +
+      "\t`UDN`\tTEXT,\n" +
+      "\t`ParentID`\tTEXT,\n" +
+      "\t`Rows`\tINTEGER,\n" +
+      "\t`Bytes`\tINTEGER,\n" +
+      "\t`EndTime`\tINTEGER,\n" +
+      "\t`LastAccess`\tINTEGER,\n" +
+      "\tPRIMARY KEY(UDN,ParentID)\n" +
+      ");";
+
+  /**
+   * Upgrade from one schema version to the next.
+   */
+  interface Migration {
+    void migrate(@NonNull SQLiteDatabase db);
+  }
+
+  /// Migrations in order. MIGRATIONS[i] upgrades version MIN_VERSION + i to MIN_VERSION + i + 1.
+  private static final Migration[] MIGRATIONS = {
+      // 7 -> 8: EPG slot index
+      new Migration() {
+        @Override
+        public void migrate(@NonNull SQLiteDatabase db) {
+          // the version 7 index was never created
+          db.execSQL("CREATE INDEX IF NOT EXISTS DLNAObjects_Index ON DLNAObjects(ChannelID,ScheduledStartTime,ScheduledEndTime);");
+          db.execSQL(V8_CREATE_EPG_SLOTS_TABLE);
+          db.execSQL(V8_CREATE_EPG_SLOTS_SLOT_INDEX);
+          db.execSQL(V8_CREATE_EPG_SLOTS_PARENT_INDEX);
+          buildEpgSlots(db);
+        }
+      },
+      // 8 -> 9: binary encoding
+      new Migration() {
+        @Override
+        public void migrate(@NonNull SQLiteDatabase db) {
+          migrateJsonToData(db);
+        }
+      },
+      // 9 -> 10: promoted view columns
+      new Migration() {
+        @Override
+        public void migrate(@NonNull SQLiteDatabase db) {
+          addPromotedColumns(db);
+        }
+      },
+      // 10 -> 11: parent tracking for retention
+      new Migration() {
+        @Override
+        public void migrate(@NonNull SQLiteDatabase db) {
+          // start tracking existing parents, treating them as never accessed
+          db.execSQL(V11_CREATE_CACHE_PARENTS_TABLE);
+          db.execSQL("INSERT INTO CacheParents (UDN, ParentID, Rows, Bytes, EndTime, LastAccess)" +
+              " SELECT UDN, ParentID, COUNT(*), IFNULL(SUM(LENGTH(Data)), 0), MAX(ScheduledEndTime), 0" +
+              " FROM DLNAObjects GROUP BY UDN, ParentID;");
+        }
+      }
+  };
+
+  private DlnaSqlMigrations() {
+  }
+
+  /**
+   * Return the version the migrations upgrade to. Must equal {@link DlnaSqlCache#DATABASE_VERSION}.
+   */
+  static int getLatestVersion() {
+    return MIN_VERSION + MIGRATIONS.length;
+  }
+
+  /**
+   * Upgrade a database in place. Called inside the upgrade transaction.
+   *
+   * @param db         Database to upgrade.
+   * @param oldVersion Current schema version.
+   * @param newVersion Target schema version.
+   * @return True if migrated, false if there is no migration path and the database must be recreated.
+   */
+  static boolean migrate(@NonNull SQLiteDatabase db, int oldVersion, int newVersion) {
+    if (oldVersion < MIN_VERSION || newVersion > getLatestVersion()) {
+      return false;
+    }
+    for (int version = oldVersion; version < newVersion; version++) {
+      long time = System.currentTimeMillis();
+      MIGRATIONS[version - MIN_VERSION].migrate(db);
+      Log.d(TAG, String.format("Cache migrated from version %d to %d in %dms.", version, version + 1, System.currentTimeMillis() - time));
+    }
+    return true;
+  }
+
+  /**
+   * Add slot index rows for every cached program, reading programs in rowid order in batches.
+   */
+  private static void buildEpgSlots(SQLiteDatabase db) {
+    SQLiteStatement insertSlot = db.compileStatement(V8_INSERT_SLOT);
+    long lastRowId = -1;
+    int programs = 0;
+    try {
+      while (true) {
+        Cursor cursor = db.rawQuery("SELECT rowid, UDN, ChannelID, ParentID, ID, ScheduledStartTime, ScheduledEndTime FROM DLNAObjects" +
+                " WHERE rowid > ? AND ScheduledStartTime IS NOT NULL AND ScheduledEndTime IS NOT NULL AND ChannelID IS NOT NULL AND ID IS NOT NULL" +
+                " ORDER BY rowid LIMIT 500",
+            new String[]{String.valueOf(lastRowId)});
+        try {
+          if (cursor.getCount() == 0) {
+            break;
+          }
+          for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+            lastRowId = cursor.getLong(0);
+            long firstSlot = cursor.getLong(5) / V8_EPG_SLOT_MS;
+            // end time is exclusive
+            long lastSlot = Math.max(firstSlot, (cursor.getLong(6) - 1) / V8_EPG_SLOT_MS);
+            for (long slot = firstSlot; slot <= lastSlot; slot++) {
+              insertSlot.bindString(1, cursor.getString(1));
+              insertSlot.bindString(2, cursor.getString(2));
+              insertSlot.bindLong(3, slot);
+              insertSlot.bindLong(4, slot == firstSlot ? 1 : 0);
+              insertSlot.bindString(5, cursor.getString(3));
+              insertSlot.bindString(6, cursor.getString(4));
+              insertSlot.executeInsert();
+            }
+            programs++;
+          }
+        } finally {
+          cursor.close();
+        }
+      }
+    } finally {
+      insertSlot.close();
+    }
+    Log.d(TAG, String.format("%d cached programs added to the slot index.", programs));
+  }
+
+  /**
+   * Add the Data column and re-encode every JSON row with {@link DlnaObjectCodec}.
+   * Rows are converted in batches so the cursor never spans rows being updated.
+   * Rows that cannot be decoded are deleted and will be re-cached from the server.
+   */
+  private static void migrateJsonToData(SQLiteDatabase db) {
+    db.execSQL("ALTER TABLE DLNAObjects ADD COLUMN Data BLOB;");
+    Gson gson = new Gson();
+    SQLiteStatement update = db.compileStatement("UPDATE DLNAObjects SET Data = ?, JSON = NULL WHERE rowid = ?");
+    SQLiteStatement delete = db.compileStatement("DELETE FROM DLNAObjects WHERE rowid = ?");
+    int converted = 0;
+    try {
+      while (true) {
+        Cursor cursor = db.rawQuery("SELECT rowid, UPNPClass, JSON FROM DLNAObjects WHERE JSON IS NOT NULL LIMIT 500", null);
+        try {
+          if (cursor.getCount() == 0) {
+            break;
+          }
+          for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+            long rowId = cursor.getLong(0);
+            try {
+              Class<? extends DlnaObject> clazz = DlnaObjects.DlnaClass.classOf(cursor.getString(1));
+              DlnaObject item = gson.fromJson(cursor.getString(2), clazz);
+              update.bindBlob(1, DlnaObjectCodec.encode(item));
+              update.bindLong(2, rowId);
+              update.executeUpdateDelete();
+              converted++;
+            } catch (RuntimeException e) {
+              Log.e(TAG, "Error converting cached object, deleting. error = " + e);
+              delete.bindLong(1, rowId);
+              delete.executeUpdateDelete();
+            }
+          }
+        } finally {
+          cursor.close();
+        }
+      }
+    } finally {
+      update.close();
+      delete.close();
+    }
+    Log.d(TAG, String.format("%d cached objects converted to binary encoding.", converted));
+  }
+
+  /**
+   * Add the Icon, ProgramTitle & Rating columns and fill them from each row's encoded object.
+   * Rows are read in rowid order in batches, so each batch resumes after the last row converted.
+   */
+  private static void addPromotedColumns(SQLiteDatabase db) {
+    db.execSQL("ALTER TABLE DLNAObjects ADD COLUMN Icon TEXT;");
+    db.execSQL("ALTER TABLE DLNAObjects ADD COLUMN ProgramTitle TEXT;");
+    db.execSQL("ALTER TABLE DLNAObjects ADD COLUMN Rating TEXT;");
+    SQLiteStatement update = db.compileStatement("UPDATE DLNAObjects SET Icon = ?, ProgramTitle = ?, Rating = ? WHERE rowid = ?");
+    long lastRowId = -1;
+    int converted = 0;
+    try {
+      while (true) {
+        Cursor cursor = db.rawQuery("SELECT rowid, UPNPClass, Data FROM DLNAObjects WHERE rowid > ? AND Data IS NOT NULL ORDER BY rowid LIMIT 500",
+            new String[]{String.valueOf(lastRowId)});
+        try {
+          if (cursor.getCount() == 0) {
+            break;
+          }
+          for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+            lastRowId = cursor.getLong(0);
+            try {
+              DlnaObject item = DlnaObjectCodec.decode(cursor.getString(1), cursor.getBlob(2));
+              String programTitle = null;
+              String rating = null;
+              if (item instanceof DlnaObjects.EpgItem) {
+                programTitle = ((DlnaObjects.EpgItem) item).getProgramTitle();
+                rating = ((DlnaObjects.EpgItem) item).getRating();
+              } else if (item instanceof DlnaObjects.VideoItem) {
+                programTitle = ((DlnaObjects.VideoItem) item).getProgramTitle();
+                rating = ((DlnaObjects.VideoItem) item).getRating();
+              }
+              update.clearBindings();
+              bindStringOrNull(update, 1, item.getIcon());
+              bindStringOrNull(update, 2, programTitle);
+              bindStringOrNull(update, 3, rating);
+              update.bindLong(4, lastRowId);
+              update.executeUpdateDelete();
+              converted++;
+            } catch (RuntimeException e) {
+              // leave the columns empty, the object is still readable from Data
+              Log.e(TAG, "Error reading cached object for promoted columns. error = " + e);
+            }
+          }
+        } finally {
+          cursor.close();
+        }
+      }
+    } finally {
+      update.close();
+    }
+    Log.d(TAG, String.format("%d cached objects updated with promoted columns.", converted));
+  }
+
+  private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+    if (value != null) {
+      statement.bindString(index, value);
+    } else {
+      statement.bindNull(index);
+    }
+  }
+}
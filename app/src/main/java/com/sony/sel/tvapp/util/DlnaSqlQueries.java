@@ -0,0 +1,297 @@
+package com.sony.sel.tvapp.util;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.MergeCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Parameterized query layer for {@link DlnaSqlCache}.
+ * <p/>
+ * Each query shape has fixed SQL text and all values are passed as bound arguments,
+ * so SQLite's prepared statement cache is hit on repeated calls and IDs containing quotes are safe.
+ * Channel lists are padded to a small set of fixed arities to keep the statement text stable.
+ */
+class DlnaSqlQueries {
+
+  private static final String GET_CHILDREN = "SELECT UPNPClass, Data FROM DLNAObjects" +
+      " WHERE UDN = ? AND ParentID = ? ORDER BY ChildIndex";
+
+  private static final String GET_ITEM_BY_ID = "SELECT UPNPClass, Data FROM DLNAObjects" +
+      " WHERE UDN = ? AND ID = ? LIMIT 1";
+
+  private static final String SEARCH_CLAUSE = " FROM DLNAObjects o" +
+      " WHERE o.UDN = ? AND o.ParentID LIKE ? ESCAPE '\\' AND o.Title LIKE ?";
+
+  /// Columns needed to fully decode an object
+  private static final String[] ITEM_COLUMNS = {"UPNPClass", "Data"};
+
+  /// Promoted columns read by {@link VideoProgramView}, plus the class to skip other objects
+  private static final String[] VIEW_COLUMNS = {
+      "ID", "Title", "ProgramTitle", "ChannelID", "Icon", "Rating", "ScheduledStartTime", "ScheduledEndTime", "UPNPClass"
+  };
+
+  /// Channel list sizes that get their own statement. Longer lists are split into chunks of the largest size.
+  private static final int[] CHANNEL_ARITIES = {1, 8, 32, 128, 512};
+
+  /// Arity used for queries on all channels
+  private static final int ALL_CHANNELS = 0;
+
+  private final SQLiteDatabase db;
+  private final Map<Integer, String> epgItemQueries = new HashMap<>();
+  private final Map<Integer, String> epgViewQueries = new HashMap<>();
+  private final Map<Integer, SQLiteStatement> epgCountStatements = new HashMap<>();
+
+  DlnaSqlQueries(@NonNull SQLiteDatabase db) {
+    this.db = db;
+  }
+
+  /**
+   * Query the children of a parent, in child index order.
+   */
+  Cursor getChildren(@NonNull String udn, @NonNull String parentId) {
+    return db.rawQuery(GET_CHILDREN, new String[]{udn, parentId});
+  }
+
+  /**
+   * Query a single object by ID.
+   */
+  Cursor getItemById(@NonNull String udn, @NonNull String id) {
+    return db.rawQuery(GET_ITEM_BY_ID, new String[]{udn, id});
+  }
+
+  /**
+   * Query objects below a parent whose title matches the search text.
+   * Non-alphanumeric characters in the search text match any sequence of characters.
+   */
+  Cursor search(@NonNull String udn, @NonNull String parentId, @NonNull String searchText) {
+    return db.rawQuery("SELECT " + selectColumns(ITEM_COLUMNS) + SEARCH_CLAUSE, getSearchArgs(udn, parentId, searchText));
+  }
+
+  /**
+   * Search as in {@link #search(String, String, String)}, returning the columns for {@link VideoProgramView}.
+   */
+  Cursor searchViews(@NonNull String udn, @NonNull String parentId, @NonNull String searchText) {
+    return db.rawQuery("SELECT " + selectColumns(VIEW_COLUMNS) + SEARCH_CLAUSE, getSearchArgs(udn, parentId, searchText));
+  }
+
+  private static String[] getSearchArgs(String udn, String parentId, String searchText) {
+    return new String[]{
+        udn,
+        escapeLike(parentId) + "%",
+        "%" + searchText.replaceAll("[^a-zA-Z0-9]", "%") + "%"
+    };
+  }
+
+  /**
+   * Query EPG programs overlapping a time interval, sorted by channel and start time.
+   * Channels are sorted as strings, like the memory tiers sort them.
+   * Programs without a channel ID aren't in the slot index, so no EPG query returns them.
+   *
+   * @param udn      Server UDN.
+   * @param channels Channel IDs, or null for all channels.
+   * @param start    Start of the interval in ms.
+   * @param end      End of the interval in ms.
+   * @return Cursor with UPNPClass & Data columns.
+   */
+  Cursor getEpgItems(@NonNull String udn, @Nullable List<String> channels, long start, long end) {
+    return queryEpg(ITEM_COLUMNS, epgItemQueries, udn, channels, start, end);
+  }
+
+  /**
+   * Query EPG programs as in {@link #getEpgItems(String, List, long, long)}, returning the columns for {@link VideoProgramView}.
+   */
+  Cursor getEpgViews(@NonNull String udn, @Nullable List<String> channels, long start, long end) {
+    return queryEpg(VIEW_COLUMNS, epgViewQueries, udn, channels, start, end);
+  }
+
+  private Cursor queryEpg(String[] columns, Map<Integer, String> queries, String udn, List<String> channels, long start, long end) {
+    if (channels == null) {
+      return db.rawQuery(getEpgQuery(columns, queries, ALL_CHANNELS), getEpgArgs(udn, null, start, end));
+    }
+    List<List<String>> chunks = getChannelChunks(channels);
+    if (chunks.isEmpty()) {
+      return new MatrixCursor(columns);
+    } else if (chunks.size() == 1) {
+      List<String> chunk = chunks.get(0);
+      return db.rawQuery(getEpgQuery(columns, queries, chunk.size()), getEpgArgs(udn, chunk, start, end));
+    }
+    // chunks are split in string order and each chunk is sorted by the TEXT slot channel,
+    // so the merged results are in the same order as a single query
+    Cursor[] cursors = new Cursor[chunks.size()];
+    for (int i = 0; i < chunks.size(); i++) {
+      List<String> chunk = chunks.get(i);
+      cursors[i] = db.rawQuery(getEpgQuery(columns, queries, chunk.size()), getEpgArgs(udn, chunk, start, end));
+    }
+    return new MergeCursor(cursors);
+  }
+
+  /**
+   * Count EPG programs overlapping a time interval using a precompiled statement.
+   *
+   * @param udn      Server UDN.
+   * @param channels Channel IDs, or null for all channels.
+   * @param start    Start of the interval in ms.
+   * @param end      End of the interval in ms.
+   * @return Number of matching programs.
+   */
+  int countEpgItems(@NonNull String udn, @Nullable List<String> channels, long start, long end) {
+    if (channels == null) {
+      return countEpgItems(udn, null, ALL_CHANNELS, start, end);
+    }
+    int count = 0;
+    for (List<String> chunk : getChannelChunks(channels)) {
+      count += countEpgItems(udn, chunk, chunk.size(), start, end);
+    }
+    return count;
+  }
+
+  private int countEpgItems(String udn, List<String> channels, int arity, long start, long end) {
+    SQLiteStatement statement = getEpgCountStatement(arity);
+    synchronized (statement) {
+      int index = 1;
+      statement.bindString(index++, udn);
+      if (channels != null) {
+        for (String channel : channels) {
+          statement.bindString(index++, channel);
+        }
+      }
+      long startSlot = DlnaSqlCache.getEpgSlot(start);
+      statement.bindLong(index++, startSlot);
+      statement.bindLong(index++, DlnaSqlCache.getEpgSlot(end));
+      statement.bindLong(index++, startSlot);
+      statement.bindLong(index++, end);
+      statement.bindLong(index, start);
+      try {
+        return (int) statement.simpleQueryForLong();
+      } finally {
+        statement.clearBindings();
+      }
+    }
+  }
+
+  /**
+   * Release compiled statements.
+   */
+  synchronized void close() {
+    for (SQLiteStatement statement : epgCountStatements.values()) {
+      statement.close();
+    }
+    epgCountStatements.clear();
+  }
+
+  private synchronized String getEpgQuery(String[] columns, Map<Integer, String> queries, int arity) {
+    String query = queries.get(arity);
+    if (query == null) {
+      // sort by the slot's TEXT channel, DLNAObjects.ChannelID has numeric affinity and would sort "10" before "9"
+      query = "SELECT " + selectColumns(columns) + buildEpgClause(arity) + " ORDER BY s.ChannelID, o.ScheduledStartTime";
+      queries.put(arity, query);
+    }
+    return query;
+  }
+
+  /**
+   * Build a select list of DLNAObjects columns, aliased as o.
+   */
+  private static String selectColumns(String[] columns) {
+    StringBuilder select = new StringBuilder();
+    for (String column : columns) {
+      if (select.length() > 0) {
+        select.append(", ");
+      }
+      select.append("o.").append(column);
+    }
+    return select.toString();
+  }
+
+  private synchronized SQLiteStatement getEpgCountStatement(int arity) {
+    SQLiteStatement statement = epgCountStatements.get(arity);
+    if (statement == null) {
+      statement = db.compileStatement("SELECT COUNT(*)" + buildEpgClause(arity));
+      epgCountStatements.put(arity, statement);
+    }
+    return statement;
+  }
+
+  /**
+   * Build the FROM/WHERE clause of an EPG query. Reads the slot index, then applies the exact overlap test.
+   * Bound arguments are UDN, channels (if arity > 0), start slot, end slot, start slot, end time, start time.
+   */
+  private static String buildEpgClause(int arity) {
+    StringBuilder clause = new StringBuilder(" FROM EpgSlots s")
+        .append(" JOIN DLNAObjects o ON o.UDN = s.UDN AND o.ParentID = s.ParentID AND o.ID = s.ID")
+        .append(" WHERE s.UDN = ?");
+    if (arity > 0) {
+      clause.append(" AND s.ChannelID IN (?");
+      for (int i = 1; i < arity; i++) {
+        clause.append(", ?");
+      }
+      clause.append(")");
+    }
+    clause.append(" AND s.Slot BETWEEN ? AND ?")
+        .append(" AND (s.Slot = ? OR s.First = 1)")
+        .append(" AND o.ScheduledStartTime <= ?")
+        .append(" AND o.ScheduledEndTime > ?");
+    return clause.toString();
+  }
+
+  private static String[] getEpgArgs(String udn, List<String> channels, long start, long end) {
+    List<String> args = new ArrayList<>();
+    args.add(udn);
+    if (channels != null) {
+      args.addAll(channels);
+    }
+    String startSlot = String.valueOf(DlnaSqlCache.getEpgSlot(start));
+    args.add(startSlot);
+    args.add(String.valueOf(DlnaSqlCache.getEpgSlot(end)));
+    args.add(startSlot);
+    args.add(String.valueOf(end));
+    args.add(String.valueOf(start));
+    return args.toArray(new String[args.size()]);
+  }
+
+  /**
+   * Sort and de-duplicate a channel list, split it into chunks no larger than the largest arity,
+   * and pad each chunk to a fixed arity by repeating its last channel.
+   */
+  static List<List<String>> getChannelChunks(List<String> channels) {
+    List<String> sorted = new ArrayList<>(new TreeSet<>(channels));
+    int maxArity = CHANNEL_ARITIES[CHANNEL_ARITIES.length - 1];
+    List<List<String>> chunks = new ArrayList<>();
+    for (int from = 0; from < sorted.size(); from += maxArity) {
+      List<String> chunk = new ArrayList<>(sorted.subList(from, Math.min(from + maxArity, sorted.size())));
+      int arity = getChannelArity(chunk.size());
+      String padding = chunk.get(chunk.size() - 1);
+      while (chunk.size() < arity) {
+        chunk.add(padding);
+      }
+      chunks.add(chunk);
+    }
+    return chunks;
+  }
+
+  private static int getChannelArity(int count) {
+    for (int arity : CHANNEL_ARITIES) {
+      if (count <= arity) {
+        return arity;
+      }
+    }
+    return CHANNEL_ARITIES[CHANNEL_ARITIES.length - 1];
+  }
+
+  /**
+   * Escape LIKE wildcards so a value matches literally.
+   */
+  private static String escapeLike(String value) {
+    return value.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+  }
+}
@@ -14,6 +14,7 @@ import android.os.IBinder;
 import android.os.RemoteException;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.google.gson.Gson;
@@ -25,10 +26,10 @@ import com.sony.sel.util.ObserverSet;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static com.sony.sel.tvapp.util.DlnaObjects.DlnaObject;
 import static com.sony.sel.tvapp.util.DlnaObjects.UpnpDevice;
@@ -48,7 +49,8 @@ public class HueyDlnaHelper extends BaseDlnaHelper {
 
   private ContentResolver contentResolver;
   private NetworkHelper networkHelper;
-  private Map<Uri, List<DlnaObject>> dlnaCache = new HashMap<>();
+  /// Children by URI, and by projection for trimmed queries. Batches read & write it from several threads.
+  private final Map<String, List<DlnaObject>> dlnaCache = new ConcurrentHashMap<>();
 
   private IUpnpServiceCp hueyService;
   private ServiceConnection hueyConnection = new ServiceConnection() {
@@ -192,9 +194,10 @@ public class HueyDlnaHelper extends BaseDlnaHelper {
         null, null);
     if (cursor != null) {
       Log.d(TAG, "Device column names: " + new Gson().toJson(cursor.getColumnNames()));
+      DlnaObjects.CursorBinder binder = new DlnaObjects.CursorBinder(cursor);
       while (cursor.moveToNext()) {
         UpnpDevice device = new DlnaObjects.UpnpDevice();
-        device.loadFromCursor(cursor);
+        binder.load(device);
         Log.d(TAG, device.toString());
         devices.add(device);
       }
@@ -209,11 +212,34 @@ public class HueyDlnaHelper extends BaseDlnaHelper {
   @Override
   @NonNull
   public <T extends DlnaObject> List<T> getChildren(String udn, String parentId, Class<T> childClass, @Nullable ContentObserver contentObserver, boolean useCache) {
+    return getChildren(udn, parentId, childClass, null, contentObserver, useCache);
+  }
+
+  /**
+   * Return the DLNA child objects of a given parent, reading only some of their columns.
+   * Screens that show a few fields of each child can use a trimmed projection to reduce the data copied from the DLNA service.
+   *
+   * @param udn             Device UDN.
+   * @param parentId        Parent ID.
+   * @param childClass      Expected {@link com.sony.sel.tvapp.util.DlnaObjects.DlnaObject} subclass of child elements.
+   * @param columns         Columns to read, or null to read every column of the child class.
+   *                        See {@link DlnaObject#getColumnNames(Class, String...)}.
+   * @param contentObserver Content observer to watch for changes to children.
+   * @param useCache        True to return cached data if it exists.
+   * @param <T>             Expected class of child elements.
+   * @return List of child elements, or empty list if none exist or an error occurs.
+   */
+  @NonNull
+  public <T extends DlnaObject> List<T> getChildren(String udn, String parentId, Class<T> childClass, @Nullable String[] columns,
+                                                    @Nullable ContentObserver contentObserver, boolean useCache) {
 
     Uri uri = DlnaCdsStore.getObjectUri(udn, parentId);
+    String[] projection = columns != null ? DlnaObject.getColumnNames(childClass, columns) : DlnaObject.getColumnNames(childClass);
+    // trimmed children are cached apart from full children
+    String cacheKey = columns != null ? uri + "#" + TextUtils.join(",", projection) : uri.toString();
 
     if (useCache && contentObserver == null) {
-      List<DlnaObject> cachedContent = dlnaCache.get(uri);
+      List<DlnaObject> cachedContent = dlnaCache.get(cacheKey);
       if (cachedContent != null) {
         Log.d(TAG, "Returning cached content for " + uri + ".");
         return (List<T>) cachedContent;
@@ -226,9 +252,8 @@ public class HueyDlnaHelper extends BaseDlnaHelper {
     try {
       Log.d(TAG, "Get DLNA child objects. UDN = " + udn + ", ID = " + parentId + ".");
       Log.d(TAG, "URI = " + uri);
-      String[] columns = DlnaObject.getColumnNames(childClass);
       Log.d(TAG, "Querying. UDN = " + udn + ", ID = " + parentId + ".");
-      cursor = contentResolver.query(uri, columns, null, null, null);
+      cursor = contentResolver.query(uri, projection, null, null, null);
       Log.d(TAG, "Response received. UDN = " + udn + ", ID = " + parentId + ".");
       if (contentObserver != null) {
         contentResolver.registerContentObserver(uri, false, contentObserver);
@@ -241,10 +266,12 @@ public class HueyDlnaHelper extends BaseDlnaHelper {
         Log.d(TAG, String.format(Locale.getDefault(), "%d child items found.", cursor.getCount()));
       }
       if (cursor.moveToFirst()) {
+        DlnaObjects.CursorBinder binder = new DlnaObjects.CursorBinder(cursor);
+        int classColumn = cursor.getColumnIndex(DlnaCdsStore.CLASS);
         do {
-          String upnpClass = cursor.getString(cursor.getColumnIndex(DlnaCdsStore.CLASS));
+          String upnpClass = cursor.getString(classColumn);
           DlnaObject dlnaObject = DlnaObjects.DlnaClass.newInstance(upnpClass);
-          dlnaObject.loadFromCursor(cursor);
+          binder.load(dlnaObject);
           children.add((T) dlnaObject);
         } while (cursor.moveToNext());
       }
@@ -256,7 +283,7 @@ public class HueyDlnaHelper extends BaseDlnaHelper {
         cursor.close();
       }
       if (children != null) {
-        dlnaCache.put(uri, (List<DlnaObject>) children);
+        dlnaCache.put(cacheKey, (List<DlnaObject>) children);
       }
     }
     return children;
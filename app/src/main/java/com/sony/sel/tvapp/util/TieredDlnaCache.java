@@ -0,0 +1,473 @@
+package com.sony.sel.tvapp.util;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.sony.sel.tvapp.util.DlnaObjects.DlnaObject;
+import com.sony.sel.tvapp.util.DlnaObjects.VideoProgram;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Two-tier DLNA cache: a bounded in-memory tier in front of the SQLite tier.
+ * <p/>
+ * Children are written through to both tiers and read from memory first, so recently browsed
+ * parents never touch SQLite. EPG queries inside a window around the current time are answered
+ * from an in-memory copy of that window, which is loaded from SQLite on first use. Adding programs
+ * that overlap it marks only their channels stale, and stale channels are reloaded when a query needs
+ * them. While SQLite writes are pending, a query that would load from SQLite goes straight to SQLite
+ * for the requested channels instead. Everything else goes to the SQLite tier.
+ */
+public class TieredDlnaCache implements DlnaCache {
+
+  public static final String TAG = TieredDlnaCache.class.getSimpleName();
+
+  /// Time covered by the EPG window before the current hour
+  static final long WINDOW_BEFORE_MS = 60 * 60 * 1000;
+
+  /// Time covered by the EPG window after the current hour
+  static final long WINDOW_AFTER_MS = 6 * 60 * 60 * 1000;
+
+  /**
+   * Per-tier cache statistics.
+   */
+  public static class Stats {
+
+    private final DlnaMemoryCache.Stats memoryStats;
+    private final long windowHitCount;
+    private final long windowLoadCount;
+    private final long sqlReadCount;
+
+    Stats(DlnaMemoryCache.Stats memoryStats, long windowHitCount, long windowLoadCount, long sqlReadCount) {
+      this.memoryStats = memoryStats;
+      this.windowHitCount = windowHitCount;
+      this.windowLoadCount = windowLoadCount;
+      this.sqlReadCount = sqlReadCount;
+    }
+
+    /**
+     * @return Statistics of the memory tier's children cache.
+     */
+    public DlnaMemoryCache.Stats getMemoryStats() {
+      return memoryStats;
+    }
+
+    /**
+     * @return Number of EPG queries answered by the in-memory EPG window.
+     */
+    public long getWindowHitCount() {
+      return windowHitCount;
+    }
+
+    /**
+     * @return Number of times the EPG window, or some of its channels, was loaded from SQLite.
+     */
+    public long getWindowLoadCount() {
+      return windowLoadCount;
+    }
+
+    /**
+     * @return Number of reads that went to the SQLite tier.
+     */
+    public long getSqlReadCount() {
+      return sqlReadCount;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("memory = [%s], window hits = %d, window loads = %d, sql reads = %d",
+          memoryStats, windowHitCount, windowLoadCount, sqlReadCount);
+    }
+  }
+
+  /**
+   * Immutable copy of the EPG programs overlapping a time window, by channel in SQLite order.
+   * Channels whose programs changed since they were loaded are marked stale.
+   */
+  private static class EpgWindow {
+
+    final String udn;
+    final long start;
+    final long end;
+    final TreeMap<String, List<VideoProgram>> channels;
+    final Set<String> staleChannels;
+
+    EpgWindow(String udn, long start, long end, List<VideoProgram> programs) {
+      this(udn, start, end, new TreeMap<String, List<VideoProgram>>(), Collections.<String>emptySet());
+      addAll(channels, programs);
+    }
+
+    private EpgWindow(String udn, long start, long end, TreeMap<String, List<VideoProgram>> channels, Set<String> staleChannels) {
+      this.udn = udn;
+      this.start = start;
+      this.end = end;
+      this.channels = channels;
+      this.staleChannels = staleChannels;
+    }
+
+    boolean contains(String udn, long start, long end) {
+      return this.udn.equals(udn) && start >= this.start && end <= this.end;
+    }
+
+    /**
+     * Return the stale channels a query needs.
+     *
+     * @param channelIds Channels of the query, or null for all channels.
+     */
+    Set<String> getStaleChannels(@Nullable List<String> channelIds) {
+      if (channelIds == null || staleChannels.isEmpty()) {
+        return staleChannels;
+      }
+      Set<String> stale = new HashSet<>();
+      for (String channelId : channelIds) {
+        if (staleChannels.contains(channelId)) {
+          stale.add(channelId);
+        }
+      }
+      return stale;
+    }
+
+    /**
+     * Return a copy of this window with more channels marked stale.
+     */
+    EpgWindow withStaleChannels(Set<String> channelIds) {
+      Set<String> stale = new HashSet<>(staleChannels);
+      stale.addAll(channelIds);
+      return new EpgWindow(udn, start, end, channels, stale);
+    }
+
+    /**
+     * Return a copy of this window with some channels replaced by freshly loaded programs.
+     *
+     * @param channelIds Channels that were loaded.
+     * @param programs   Programs of those channels overlapping the window.
+     */
+    EpgWindow withChannels(Set<String> channelIds, List<VideoProgram> programs) {
+      TreeMap<String, List<VideoProgram>> updated = new TreeMap<>(channels);
+      for (String channelId : channelIds) {
+        updated.remove(channelId);
+      }
+      addAll(updated, programs);
+      Set<String> stale = new HashSet<>(staleChannels);
+      stale.removeAll(channelIds);
+      return new EpgWindow(udn, start, end, updated, stale);
+    }
+
+    /**
+     * Return the programs overlapping an interval, with the same overlap test as the SQLite tier.
+     */
+    List<VideoProgram> search(@Nullable List<String> channelIds, long start, long end) {
+      Set<String> channelSet = channelIds != null ? new HashSet<>(channelIds) : null;
+      List<VideoProgram> results = new ArrayList<>();
+      for (Map.Entry<String, List<VideoProgram>> channel : channels.entrySet()) {
+        if (channelSet != null && !channelSet.contains(channel.getKey())) {
+          continue;
+        }
+        for (VideoProgram program : channel.getValue()) {
+          if (program.getScheduledStartMillis() <= end && program.getScheduledEndMillis() > start) {
+            results.add(program);
+          }
+        }
+      }
+      return results;
+    }
+
+    private static void addAll(TreeMap<String, List<VideoProgram>> channels, List<VideoProgram> programs) {
+      for (VideoProgram program : programs) {
+        if (program.getChannelId() == null) {
+          // SQLite only indexes programs with a channel
+          continue;
+        }
+        List<VideoProgram> channel = channels.get(program.getChannelId());
+        if (channel == null) {
+          channel = new ArrayList<>();
+          channels.put(program.getChannelId(), channel);
+        }
+        channel.add(program);
+      }
+    }
+  }
+
+  private final DlnaMemoryCache memoryCache;
+  private final DlnaSqlCache sqlCache;
+
+  /// The EPG window, replaced under windowLock
+  private volatile EpgWindow epgWindow;
+  private final Object windowLock = new Object();
+
+  /// Incremented on every invalidation, so a window loaded across an invalidation is discarded
+  private final AtomicInteger windowGeneration = new AtomicInteger();
+
+  private final AtomicLong windowHitCount = new AtomicLong();
+  private final AtomicLong windowLoadCount = new AtomicLong();
+  private final AtomicLong sqlReadCount = new AtomicLong();
+
+  public TieredDlnaCache(@NonNull DlnaMemoryCache memoryCache, @NonNull DlnaSqlCache sqlCache) {
+    this.memoryCache = memoryCache;
+    this.sqlCache = sqlCache;
+  }
+
+  @Nullable
+  @Override
+  public <T extends DlnaObject> List<T> getChildren(String udn, String parentId) {
+    List<T> children = memoryCache.getChildren(udn, parentId);
+    if (children == null) {
+      sqlReadCount.incrementAndGet();
+      children = sqlCache.getChildren(udn, parentId);
+      if (children != null) {
+        // promote to the memory tier
+        memoryCache.add(udn, parentId, new ArrayList<DlnaObject>(children));
+      }
+    }
+    return children;
+  }
+
+  @Override
+  public void add(@NonNull String udn, @NonNull String parentID, @NonNull List<DlnaObject> children) {
+    memoryCache.add(udn, parentID, children);
+    // queue the write before invalidating, so a window reloaded after invalidation sees it pending
+    sqlCache.add(udn, parentID, children);
+    invalidateWindow(udn, children);
+  }
+
+  @Override
+  public void addAll(@NonNull String udn, @NonNull Map<String, List<DlnaObject>> parents) {
+    memoryCache.addAll(udn, parents);
+    List<DlnaObject> children = new ArrayList<>();
+    for (List<DlnaObject> parentChildren : parents.values()) {
+      children.addAll(parentChildren);
+    }
+    sqlCache.addAll(udn, parents);
+    invalidateWindow(udn, children);
+  }
+
+  @NonNull
+  @Override
+  public <T extends DlnaObject> List<T> search(@NonNull String udn, @NonNull String parentId, @NonNull String searchText) {
+    // the memory tier only holds some parents, so searches always use SQLite
+    sqlReadCount.incrementAndGet();
+    return sqlCache.search(udn, parentId, searchText);
+  }
+
+  @Override
+  public <T extends DlnaObject> int search(@NonNull String udn, @NonNull String parentId, @NonNull String searchText, int pageSize, @NonNull PageConsumer<T> consumer) {
+    sqlReadCount.incrementAndGet();
+    return sqlCache.search(udn, parentId, searchText, pageSize, consumer);
+  }
+
+  @NonNull
+  @Override
+  public List<VideoProgram> searchEpg(@NonNull String udn, @Nullable List<String> channels, @NonNull Date startDateTime, @NonNull Date endDateTime) {
+    List<VideoProgram> programs = searchWindow(udn, channels, startDateTime.getTime(), endDateTime.getTime());
+    if (programs != null) {
+      return programs;
+    }
+    sqlReadCount.incrementAndGet();
+    return sqlCache.searchEpg(udn, channels, startDateTime, endDateTime);
+  }
+
+  @Override
+  public int searchEpg(@NonNull String udn, @Nullable List<String> channels, @NonNull Date startDateTime, @NonNull Date endDateTime, int pageSize, @NonNull PageConsumer<VideoProgram> consumer) {
+    List<VideoProgram> programs = searchWindow(udn, channels, startDateTime.getTime(), endDateTime.getTime());
+    if (programs != null) {
+      // already materialized from the window, paging only slices it
+      return DlnaMemoryCache.deliverPages(programs, pageSize, consumer);
+    }
+    sqlReadCount.incrementAndGet();
+    return sqlCache.searchEpg(udn, channels, startDateTime, endDateTime, pageSize, consumer);
+  }
+
+  @NonNull
+  @Override
+  public List<VideoProgramView> searchEpgViews(@NonNull String udn, @Nullable List<String> channels, @NonNull Date startDateTime, @NonNull Date endDateTime) {
+    List<VideoProgram> programs = searchWindow(udn, channels, startDateTime.getTime(), endDateTime.getTime());
+    if (programs != null) {
+      return DlnaMemoryCache.toViews(programs);
+    }
+    sqlReadCount.incrementAndGet();
+    return sqlCache.searchEpgViews(udn, channels, startDateTime, endDateTime);
+  }
+
+  @NonNull
+  @Override
+  public List<VideoProgramView> searchViews(@NonNull String udn, @NonNull String parentId, @NonNull String searchText) {
+    sqlReadCount.incrementAndGet();
+    return sqlCache.searchViews(udn, parentId, searchText);
+  }
+
+  @Override
+  public int countEpgItems(@NonNull String udn, @NonNull List<String> channels, @NonNull Date startDateTime, @NonNull Date endDateTime) {
+    List<VideoProgram> programs = searchWindow(udn, channels, startDateTime.getTime(), endDateTime.getTime());
+    if (programs != null) {
+      return programs.size();
+    }
+    sqlReadCount.incrementAndGet();
+    return sqlCache.countEpgItems(udn, channels, startDateTime, endDateTime);
+  }
+
+  @Nullable
+  @Override
+  public <T extends DlnaObject> T getItemById(@NonNull String udn, @NonNull String id) {
+    T item = memoryCache.getItemById(udn, id);
+    if (item == null) {
+      sqlReadCount.incrementAndGet();
+      item = sqlCache.getItemById(udn, id);
+    }
+    return item;
+  }
+
+  @Override
+  public void reset() {
+    memoryCache.reset();
+    synchronized (windowLock) {
+      windowGeneration.incrementAndGet();
+      epgWindow = null;
+    }
+    sqlCache.reset();
+  }
+
+  /**
+   * Return a snapshot of the statistics for each tier.
+   */
+  @NonNull
+  public Stats getStats() {
+    return new Stats(memoryCache.getStats(), windowHitCount.get(), windowLoadCount.get(), sqlReadCount.get());
+  }
+
+  /**
+   * Answer an EPG query from the window, loading the window or its stale channels if the query is inside
+   * the window for the current time.
+   *
+   * @return The programs, or null if the query must go to the SQLite tier.
+   */
+  @Nullable
+  private List<VideoProgram> searchWindow(String udn, @Nullable List<String> channels, long start, long end) {
+    // read before checking for pending writes, so a write queued after the check discards what is loaded
+    int generation = windowGeneration.get();
+    EpgWindow window = epgWindow;
+    boolean loaded = false;
+    if (window == null || !window.contains(udn, start, end)) {
+      long windowStart = getWindowStart(System.currentTimeMillis());
+      long windowEnd = windowStart + WINDOW_BEFORE_MS + WINDOW_AFTER_MS;
+      if (start < windowStart || end > windowEnd) {
+        // not a query around the current time
+        return null;
+      }
+      if (sqlCache.hasPendingWrites()) {
+        // a window loaded now could be out of date before it is used again, so only query the requested channels
+        return null;
+      }
+      window = loadWindow(udn, windowStart, windowEnd, generation);
+      loaded = true;
+    }
+    Set<String> stale = window.getStaleChannels(channels);
+    if (!stale.isEmpty()) {
+      if (sqlCache.hasPendingWrites()) {
+        return null;
+      }
+      window = loadChannels(window, stale);
+      loaded = true;
+    }
+    if (!loaded) {
+      windowHitCount.incrementAndGet();
+    }
+    return window.search(channels, start, end);
+  }
+
+  /**
+   * Load the window for all channels, keeping it unless programs were added since a generation.
+   *
+   * @return The window, as current as a direct SQLite query even if it is not kept.
+   */
+  private EpgWindow loadWindow(String udn, long windowStart, long windowEnd, int generation) {
+    long time = System.currentTimeMillis();
+    List<VideoProgram> programs = sqlCache.searchEpg(udn, null, new Date(windowStart), new Date(windowEnd));
+    EpgWindow window = new EpgWindow(udn, windowStart, windowEnd, programs);
+    windowLoadCount.incrementAndGet();
+    Log.d(TAG, String.format("EPG window loaded. %d programs in %dms.", programs.size(), System.currentTimeMillis() - time));
+    synchronized (windowLock) {
+      if (windowGeneration.get() == generation) {
+        epgWindow = window;
+      }
+    }
+    return window;
+  }
+
+  /**
+   * Reload stale channels of the window, keeping the result unless the window changed while loading.
+   *
+   * @return The updated window, as current as a direct SQLite query even if it is not kept.
+   */
+  private EpgWindow loadChannels(EpgWindow window, Set<String> channelIds) {
+    long time = System.currentTimeMillis();
+    List<VideoProgram> programs = sqlCache.searchEpg(window.udn, new ArrayList<>(channelIds), new Date(window.start), new Date(window.end));
+    EpgWindow updated = window.withChannels(channelIds, programs);
+    windowLoadCount.incrementAndGet();
+    Log.d(TAG, String.format("EPG window channels loaded. %d channels, %d programs in %dms.",
+        channelIds.size(), programs.size(), System.currentTimeMillis() - time));
+    synchronized (windowLock) {
+      // invalidation replaces the window, so an unchanged window had no programs added while loading
+      if (epgWindow == window) {
+        epgWindow = updated;
+      }
+    }
+    return updated;
+  }
+
+  private static long getWindowStart(long time) {
+    return DlnaSqlCache.getEpgSlot(time) * DlnaSqlCache.EPG_SLOT_MS - WINDOW_BEFORE_MS;
+  }
+
+  /**
+   * Mark the channels of added programs overlapping the window stale. Window loads in progress are discarded
+   * if the programs overlap the window for the current time.
+   */
+  private void invalidateWindow(String udn, List<DlnaObject> children) {
+    long currentStart = getWindowStart(System.currentTimeMillis());
+    boolean current = overlaps(children, currentStart, currentStart + WINDOW_BEFORE_MS + WINDOW_AFTER_MS);
+    synchronized (windowLock) {
+      if (current) {
+        windowGeneration.incrementAndGet();
+      }
+      EpgWindow window = epgWindow;
+      if (window == null || !window.udn.equals(udn)) {
+        return;
+      }
+      Set<String> channelIds = new HashSet<>();
+      for (DlnaObject child : children) {
+        if (child instanceof VideoProgram) {
+          VideoProgram program = (VideoProgram) child;
+          if (program.getChannelId() != null && program.getScheduledStartMillis() <= window.end
+              && program.getScheduledEndMillis() > window.start) {
+            channelIds.add(program.getChannelId());
+          }
+        }
+      }
+      if (!channelIds.isEmpty()) {
+        epgWindow = window.withStaleChannels(channelIds);
+      }
+    }
+  }
+
+  private static boolean overlaps(List<DlnaObject> children, long start, long end) {
+    for (DlnaObject child : children) {
+      if (child instanceof VideoProgram) {
+        VideoProgram program = (VideoProgram) child;
+        if (program.getScheduledStartMillis() <= end && program.getScheduledEndMillis() > start) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+}
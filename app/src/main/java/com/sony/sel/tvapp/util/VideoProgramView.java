@@ -0,0 +1,116 @@
+package com.sony.sel.tvapp.util;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.sony.sel.tvapp.util.DlnaObjects.VideoProgram;
+
+import java.util.Date;
+
+/**
+ * Lightweight view of a cached EPG program.
+ * <p/>
+ * The fields needed to list programs are read from promoted cache columns. The full program is only
+ * loaded by ID from the cache when {@link #getProgram()} is called, so views don't hold its encoded data.
+ */
+public class VideoProgramView {
+
+  private final String id;
+  private final String title;
+  private final String programTitle;
+  private final String channelId;
+  private final String icon;
+  private final String rating;
+  private final long scheduledStartTime;
+  private final long scheduledEndTime;
+
+  /// Cache & server to load the program from, null once it is loaded
+  private DlnaCache cache;
+  private String udn;
+  private VideoProgram program;
+
+  /**
+   * Create a view from promoted column values.
+   *
+   * @param cache Cache holding the program.
+   * @param udn   UDN of the program's server.
+   */
+  VideoProgramView(@NonNull DlnaCache cache, @NonNull String udn, String id, String title, String programTitle, String channelId,
+                   String icon, String rating, long scheduledStartTime, long scheduledEndTime) {
+    this.id = id;
+    this.title = title;
+    this.programTitle = programTitle;
+    this.channelId = channelId;
+    this.icon = icon;
+    this.rating = rating;
+    this.scheduledStartTime = scheduledStartTime;
+    this.scheduledEndTime = scheduledEndTime;
+    this.cache = cache;
+    this.udn = udn;
+  }
+
+  /**
+   * Create a view of an already decoded program.
+   */
+  public VideoProgramView(@NonNull VideoProgram program) {
+    this.id = program.getId();
+    this.title = program.getTitle();
+    this.programTitle = program.getProgramTitle();
+    this.channelId = program.getChannelId();
+    this.icon = program.getIcon();
+    this.rating = program.getRating();
+    this.scheduledStartTime = program.getScheduledStartMillis() != VideoProgram.NO_TIME ? program.getScheduledStartMillis() : 0;
+    this.scheduledEndTime = program.getScheduledEndMillis() != VideoProgram.NO_TIME ? program.getScheduledEndMillis() : 0;
+    this.program = program;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getTitle() {
+    return title;
+  }
+
+  public String getProgramTitle() {
+    return programTitle;
+  }
+
+  public String getChannelId() {
+    return channelId;
+  }
+
+  public String getIcon() {
+    return icon;
+  }
+
+  public String getRating() {
+    return rating;
+  }
+
+  public Date getScheduledStartTime() {
+    return new Date(scheduledStartTime);
+  }
+
+  public Date getScheduledEndTime() {
+    return new Date(scheduledEndTime);
+  }
+
+  /**
+   * Return the full program, loading it from the cache on first use.
+   * The first call may query the database, so don't make it on the UI thread.
+   *
+   * @return The program, or null if it is no longer cached.
+   */
+  @Nullable
+  public synchronized VideoProgram getProgram() {
+    if (program == null && cache != null) {
+      program = cache.getItemById(udn, id);
+      if (program != null) {
+        cache = null;
+        udn = null;
+      }
+    }
+    return program;
+  }
+}
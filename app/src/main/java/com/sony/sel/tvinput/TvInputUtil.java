@@ -11,6 +11,7 @@ import android.graphics.BitmapFactory;
 import android.media.tv.TvContract;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.support.annotation.NonNull;
 import android.util.Log;
 
 import com.sony.sel.tvapp.util.DlnaCache;
@@ -36,6 +37,9 @@ public class TvInputUtil {
 
   public static final String TAG = TvInputUtil.class.getSimpleName();
 
+  /// Number of programs per content provider batch, small enough to stay within the binder transaction limit
+  private static final int PROGRAM_PAGE_SIZE = 200;
+
   private Context context;
   private DlnaInterface dlnaHelper;
   private DlnaCache dlnaCache;
@@ -121,23 +125,27 @@ public class TvInputUtil {
       channelIds.add(channel.getChannelId());
     }
 
-    // query cache for EPG data
-    List<VideoProgram> programData = dlnaCache.searchEpg(udn, channelIds, startTime, endTime);
-    Log.d(TAG, "Found " + programData.size() + " EPG programs.");
-
-    // iterate epg data
-    ArrayList<ContentProviderOperation> ops = new ArrayList<>();
-    for (VideoProgram y : programData) {
-      ops.add(ContentProviderOperation.newInsert(TvContract.Programs.CONTENT_URI).withValues(videoProgramToContentValues(y)).build());
-    }
+    // query cache for EPG data, applying one batch to the content provider per page
+    int count = dlnaCache.searchEpg(udn, channelIds, startTime, endTime, PROGRAM_PAGE_SIZE, new DlnaCache.PageConsumer<VideoProgram>() {
+      @Override
+      public boolean onPage(@NonNull List<VideoProgram> page) {
+        // iterate epg data
+        ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        for (VideoProgram y : page) {
+          ops.add(ContentProviderOperation.newInsert(TvContract.Programs.CONTENT_URI).withValues(videoProgramToContentValues(y)).build());
+        }
 
-    // apply batch process to content provider
-    try {
-      Log.d(TAG, "Adding " + ops.size() + " EPG programs to Android TV database.");
-      context.getContentResolver().applyBatch(TvContract.AUTHORITY, ops);
-    } catch (Exception e) {
-      e.printStackTrace();
-    }
+        // apply batch process to content provider
+        try {
+          Log.d(TAG, "Adding " + ops.size() + " EPG programs to Android TV database.");
+          context.getContentResolver().applyBatch(TvContract.AUTHORITY, ops);
+        } catch (Exception e) {
+          e.printStackTrace();
+        }
+        return true;
+      }
+    });
+    Log.d(TAG, "Found " + count + " EPG programs.");
 
   }
 